@@ -22,33 +22,96 @@
  * THE SOFTWARE.
  */
 
+import assembler.AsmOptimizer;
+import assembler.CallInlining;
 import assembler.CodeCreation;
 import assembler.ControlFlowSegments;
+import assembler.ControlFlowSegments.DispatchMode;
+import assembler.Macro.Expansion;
+import assembler.MiniCode.MemoryModel;
+import assembler.MiniCode.RegisterLayout;
 import assembler.Optimizer;
 import assembler.Parser;
+import interpreter.BrainfuckProgram;
+import interpreter.CompilingInterpreter;
+import interpreter.FlatTape;
+import interpreter.InputSource;
+import interpreter.InputSource.EofPolicy;
+import interpreter.JvmCompiler;
+import interpreter.LoweredProgram;
+import interpreter.OptimizingInterpreter;
+import interpreter.OutputSink;
+import interpreter.OutputSink.FlushPolicy;
 import interpreter.SimpleInterpreter;
+import interpreter.TieredInterpreter;
 import java.io.File;
 import utils.SimpleTextFile;
 
 public class Main {
     
+    public enum Engine {Simple, Optimizing, Tiered, Jvm};
+    
     public static void main (String [] args) {
         final String pathInput = (args.length > 0 && new File(args[0]).exists() ? args[0] : null);
         String pathOutput = null;
+        String pathJar = null;
         Boolean interpretResult = null;
         Boolean showResult = null;
         Boolean justUseInterpreter = null;
+        Engine engine = null;
+        FlushPolicy flushPolicy = null;
+        EofPolicy eofPolicy = null;
+        Boolean verifyIdioms = null;
+        Boolean verbose = null;
+        DispatchMode dispatchMode = null;
+        RegisterLayout registerLayout = null;
+        MemoryModel memoryModel = null;
+        Boolean inlineCalls = null;
+        Boolean optimizeAsm = null;
+        Expansion divExpansion = null;
         boolean containsInvalidArgs = false;
         for (int i=1; i<args.length; i++) {
             if (args[i].equals("-o") && i+1<args.length && pathOutput == null) {
                 pathOutput = args[i+1];
                 i++;
+            } else if (args[i].equals("-j") && i+1<args.length && pathJar == null) {
+                pathJar = args[i+1];
+                i++;
             } else if (args[i].equals("-e") && interpretResult == null)
                 interpretResult = true;
             else if (args[i].equals("-p") && showResult == null)
                 showResult = true;
             else if (args[i].equals("-i") && justUseInterpreter == null)
                 justUseInterpreter = true;
+            else if (args[i].equals("-x") && i+1<args.length && engine == null && parseEngine(args[i+1]) != null) {
+                engine = parseEngine(args[i+1]);
+                i++;
+            } else if (args[i].equals("-f") && i+1<args.length && flushPolicy == null && parseFlushPolicy(args[i+1]) != null) {
+                flushPolicy = parseFlushPolicy(args[i+1]);
+                i++;
+            } else if (args[i].equals("-eof") && i+1<args.length && eofPolicy == null && parseEofPolicy(args[i+1]) != null) {
+                eofPolicy = parseEofPolicy(args[i+1]);
+                i++;
+            } else if (args[i].equals("-d") && i+1<args.length && dispatchMode == null && parseDispatchMode(args[i+1]) != null) {
+                dispatchMode = parseDispatchMode(args[i+1]);
+                i++;
+            } else if (args[i].equals("-l") && i+1<args.length && registerLayout == null && parseRegisterLayout(args[i+1]) != null) {
+                registerLayout = parseRegisterLayout(args[i+1]);
+                i++;
+            } else if (args[i].equals("-m") && i+1<args.length && memoryModel == null && parseMemoryModel(args[i+1]) != null) {
+                memoryModel = parseMemoryModel(args[i+1]);
+                i++;
+            } else if (args[i].equals("-div") && i+1<args.length && divExpansion == null && parseExpansion(args[i+1]) != null) {
+                divExpansion = parseExpansion(args[i+1]);
+                i++;
+            } else if (args[i].equals("-inline") && inlineCalls == null)
+                inlineCalls = true;
+            else if (args[i].equals("-O") && optimizeAsm == null)
+                optimizeAsm = true;
+            else if (args[i].equals("-v") && verbose == null)
+                verbose = true;
+            else if (args[i].equals("-verify") && verifyIdioms == null)
+                verifyIdioms = true;
             else
                 containsInvalidArgs = true;
         }
@@ -58,31 +121,125 @@ public class Main {
             interpretResult = false;
         if (justUseInterpreter == null)
             justUseInterpreter = false;
+        if (engine == null)
+            engine = Engine.Simple;
+        else if (!interpretResult && !justUseInterpreter)
+            containsInvalidArgs = true;
+        if (flushPolicy == null)
+            flushPolicy = FlushPolicy.Buffered;
+        else if (!interpretResult && !justUseInterpreter)
+            containsInvalidArgs = true;
+        if (eofPolicy == null)
+            eofPolicy = EofPolicy.Unchanged;
+        else if (!interpretResult && !justUseInterpreter)
+            containsInvalidArgs = true;
+        if (verbose == null)
+            verbose = false;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (dispatchMode == null)
+            dispatchMode = DispatchMode.Linear;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (registerLayout == null)
+            registerLayout = RegisterLayout.Compact;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (memoryModel == null)
+            memoryModel = MemoryModel.Flat;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (inlineCalls == null)
+            inlineCalls = false;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (optimizeAsm == null)
+            optimizeAsm = false;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (divExpansion == null)
+            divExpansion = Expansion.Native;
+        else if (justUseInterpreter)
+            containsInvalidArgs = true;
+        if (verifyIdioms == null)
+            verifyIdioms = false;
+        else if (engine != Engine.Optimizing)
+            containsInvalidArgs = true;
         
-        if (containsInvalidArgs || pathInput == null || (justUseInterpreter && (interpretResult || showResult || pathOutput != null)) || (!justUseInterpreter && !interpretResult && !showResult && pathOutput == null)) {
+        if (containsInvalidArgs || pathInput == null || (justUseInterpreter && (interpretResult || showResult || pathOutput != null || pathJar != null)) || (!justUseInterpreter && !interpretResult && !showResult && pathOutput == null && pathJar == null)) {
             System.out.println("Usage: [input-file] [options]");
             System.out.println("");
             System.out.println("Options:");
             System.out.println("   -o [FILE]   save the translated brainfuck-code in a file");
             System.out.println("   -p          print the translated brainfuck-code on the console");
+            System.out.println("   -j [FILE]   compile the translated brainfuck-code to a jvm-class and save it in a jar-file");
+            System.out.println("               run it with: java -cp build/:[FILE] " + JvmCompiler.defaultClassName);
+            System.out.println("   -d [MODE]   how the main-loop jumps to the next code-segment:");
+            System.out.println("               linear      tests one segment after another, at most 254 segments (default)");
+            System.out.println("               tree        tests the bits of the segment-index, for large programs");
+            System.out.println("   -l [LAYOUT] how the registers are placed on the tape:");
+            System.out.println("               compact     one register next to the other (default)");
+            System.out.println("               interleaved every register is followed by a scratch-cell used for copying it");
+            System.out.println("   -m [MODEL]  how the memory is addressed:");
+            System.out.println("               flat        addresses from 0 to 255, [$0] (default)");
+            System.out.println("               wide        addresses from 0 to 65535, [$1:$0] (high and low byte) or [$0]");
+            System.out.println("   -div [MODE] how div is translated:");
+            System.out.println("               native      a divmod-loop inside of the segment (default)");
+            System.out.println("               inline      the macro (macros/div.asm) is expanded at every div");
+            System.out.println("               outline     the macro is a routine, which is called by every div");
+            System.out.println("               auto        outlines the divs outside of loops, if there are at least two of them");
+            System.out.println("   -inline     inline small functions and reach functions called just once by a jump (no return-address)");
+            System.out.println("               the functions must not pop values from the stack they have not pushed");
+            System.out.println("   -O          optimize the assembly-code before the translation (constant- and copy-propagation,");
+            System.out.println("               dead-store elimination and mul by small constants)");
+            System.out.println("   -v          print statistics of the translation");
             System.out.println("   -e          interpret the translated brainfuck-code in a built-in brainfuck-interpreter");
-            System.out.println("               the cells of this interpreter are from 0 to Inf, containing bytes");
+            System.out.println("               the cells of this interpreter are from -Inf to Inf, containing bytes");
             System.out.println("   -i          just use the interpreter, use the input-file as input (brainfuck-code)");
+            System.out.println("   -x [ENGINE] the interpreter used by -e and -i:");
+            System.out.println("               simple      executes one brainfuck-instruction after another (default)");
+            System.out.println("               optimizing  folds runs of +-<> and simple loops before executing");
+            System.out.println("               tiered      executes directly and compiles frequently executed loops");
+            System.out.println("               jvm         compiles the code to a jvm-class before executing (needs a jdk)");
+            System.out.println("   -f [POLICY] when the output of the interpreter is flushed:");
+            System.out.println("               buffered    when the buffer is full, before reading input and at the end (default)");
+            System.out.println("               line        additionally after every new line");
+            System.out.println("               immediate   after every character");
+            System.out.println("   -eof [MODE] what ',' does when the input has ended:");
+            System.out.println("               unchanged   the cell keeps its value (default)");
+            System.out.println("               zero        the cell is set to 0");
+            System.out.println("               minusone    the cell is set to 255");
+            System.out.println("               terminate   the program ends");
+            System.out.println("   -verify     compare every memory-access executed in one step with the step by step execution");
+            System.out.println("               (just with -x optimizing, an error is reported if they differ)");
             System.out.println("");
             System.out.println("Example usage:");
             System.out.println("   java Main samples/fibonacci.asm -o fibonacci.bf");
             System.out.println("   java Main samples/fibonacci.asm -e");
+            System.out.println("   java Main samples/fibonacci.asm -e -x optimizing");
         } else {
             if (justUseInterpreter) {
                 SimpleTextFile file = new SimpleTextFile(pathInput);
                 StringBuilder bfCode = new StringBuilder();
                 for (String line : file.lines)
                     bfCode.append(line.trim());
-                new SimpleInterpreter().execute(bfCode.toString());
+                createInterpreter(engine, flushPolicy, eofPolicy, verifyIdioms).execute(bfCode.toString());
             } else {
                 Parser parser = new Parser(pathInput);
-                CodeCreation code = new CodeCreation(parser);
-                String bfCode = Optimizer.optimizeSimple(new ControlFlowSegments(code).createMainLoop(), true);
+                CallInlining inlining = (inlineCalls ? new CallInlining(parser) : null);
+                AsmOptimizer optimizer = (optimizeAsm ? new AsmOptimizer(inlining != null ? inlining.parsed : parser) : null);
+                CodeCreation code = new CodeCreation((optimizer != null ? optimizer.parsed : (inlining != null ? inlining.parsed : parser)), dispatchMode, registerLayout, memoryModel, divExpansion);
+                ControlFlowSegments segments = new ControlFlowSegments(code);
+                if (verbose) {
+                    if (inlining != null)
+                        inlining.printStatistics();
+                    if (optimizer != null)
+                        optimizer.printStatistics();
+                    code.registerAllocation.printStatistics();
+                    segments.simplification.printStatistics();
+                    segments.cursors.printStatistics();
+                }
+                String bfCode = Optimizer.optimizeSimple(segments.createMainLoop(), !verbose);
 
                 if (showResult)
                     System.out.println(bfCode);
@@ -91,11 +248,92 @@ public class Main {
                     file.lines.add(bfCode);
                     file.write(pathOutput);
                 }
+                if (pathJar != null)
+                    new JvmCompiler(LoweredProgram.lower(new BrainfuckProgram(bfCode))).writeJar(pathJar);
 
                 if (interpretResult)
-                    new SimpleInterpreter().execute(bfCode);
+                    createInterpreter(engine, flushPolicy, eofPolicy, verifyIdioms).execute(bfCode);
+            }
+        }
+    }
+    
+    private static SimpleInterpreter createInterpreter (Engine engine, FlushPolicy flushPolicy, EofPolicy eofPolicy, boolean verifyIdioms) {
+        switch (engine) {
+            case Simple:
+                return new SimpleInterpreter(new FlatTape(), new OutputSink(System.out, flushPolicy), new InputSource(System.in, eofPolicy));
+            case Optimizing: {
+                OptimizingInterpreter ret = new OptimizingInterpreter(new FlatTape(), new OutputSink(System.out, flushPolicy), new InputSource(System.in, eofPolicy));
+                ret.verifyIdioms = verifyIdioms;
+                return ret;
             }
+            case Tiered:
+                return new TieredInterpreter(new FlatTape(), new OutputSink(System.out, flushPolicy), new InputSource(System.in, eofPolicy), TieredInterpreter.defaultCompileThreshold);
+            case Jvm:
+                return new CompilingInterpreter(new FlatTape(), new OutputSink(System.out, flushPolicy), new InputSource(System.in, eofPolicy));
+            default:
+                throw new RuntimeException("unknown engine. (internal error)");
         }
     }
     
+    private static Engine parseEngine (String name) {
+        for (Engine engine : Engine.values())
+            if (engine.name().toLowerCase().equals(name))
+                return engine;
+        return null;
+    }
+    
+    private static DispatchMode parseDispatchMode (String mode) {
+        if (mode.equals("linear"))
+            return DispatchMode.Linear;
+        else if (mode.equals("tree"))
+            return DispatchMode.BinaryTree;
+        else
+            return null;
+    }
+    
+    private static RegisterLayout parseRegisterLayout (String layout) {
+        if (layout.equals("compact"))
+            return RegisterLayout.Compact;
+        else if (layout.equals("interleaved"))
+            return RegisterLayout.Interleaved;
+        else
+            return null;
+    }
+    
+    private static Expansion parseExpansion (String expansion) {
+        if (expansion.equals("native"))
+            return Expansion.Native;
+        else if (expansion.equals("inline"))
+            return Expansion.Inline;
+        else if (expansion.equals("outline"))
+            return Expansion.Outline;
+        else if (expansion.equals("auto"))
+            return Expansion.Auto;
+        else
+            return null;
+    }
+    
+    private static MemoryModel parseMemoryModel (String model) {
+        if (model.equals("flat"))
+            return MemoryModel.Flat;
+        else if (model.equals("wide"))
+            return MemoryModel.Wide;
+        else
+            return null;
+    }
+    
+    private static FlushPolicy parseFlushPolicy (String policy) {
+        for (FlushPolicy flushPolicy : FlushPolicy.values())
+            if (flushPolicy.name().toLowerCase().equals(policy))
+                return flushPolicy;
+        return null;
+    }
+    
+    private static EofPolicy parseEofPolicy (String policy) {
+        for (EofPolicy eofPolicy : EofPolicy.values())
+            if (eofPolicy.name().toLowerCase().equals(policy))
+                return eofPolicy;
+        return null;
+    }
+    
 }
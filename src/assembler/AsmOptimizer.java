@@ -0,0 +1,459 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.Parser.Arg;
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+public class AsmOptimizer {
+    
+    //simplifies the commands before the translation, every removed command saves its code and a test in the main-loop (opt-in, see Main):
+    //  constant propagation: registers with a known value are replaced by the constant, operations on constants are folded to a mov
+    //  and conditional jumps on constants become a jmp or are removed
+    //  strength reduction: mul with a known factor up to maxMulFactor becomes a mov and adds
+    //  copy propagation: after mov $a, $b the reads of $a are replaced by $b (as long as both are unchanged)
+    //  dead-store elimination: writes to registers, which are not read afterwards, are removed
+    //the registers are 0 at the start, the control-flow is the one of the register-allocation (a ret continues behind every call)
+    //the passes are repeated until nothing changes anymore
+    
+    public static final int maxIterations = 16, maxMulFactor = 4;
+    
+    public final Parser parsed;
+    public final int numberOfCommandsBefore, numberOfIterations;
+    public final int numberOfFoldedCommands, numberOfResolvedJumps, numberOfReducedMuls, numberOfPropagatedCopies, numberOfRemovedStores;
+    
+    private static final int unknown = -1;
+    
+    private int foldedCommands = 0, resolvedJumps = 0, reducedMuls = 0, propagatedCopies = 0, removedStores = 0;
+    
+    public AsmOptimizer (Parser parsed) {
+        this.numberOfCommandsBefore = parsed.commands.length;
+        Parser current = parsed, before = null;
+        int iterations = 0;
+        while (current != before && iterations < maxIterations) {
+            before = current;
+            current = removeDeadStores(propagateCopies(propagateConstants(current)));
+            iterations++;
+        }
+        
+        this.parsed = current;
+        this.numberOfIterations = iterations;
+        this.numberOfFoldedCommands = foldedCommands;
+        this.numberOfResolvedJumps = resolvedJumps;
+        this.numberOfReducedMuls = reducedMuls;
+        this.numberOfPropagatedCopies = propagatedCopies;
+        this.numberOfRemovedStores = removedStores;
+    }
+    
+    public void printStatistics () {
+        System.out.println("Commands: " + parsed.commands.length + "     (" + (numberOfCommandsBefore - parsed.commands.length) + " / " + numberOfCommandsBefore + " removed, " + numberOfIterations + " iterations)");
+        System.out.println("Constant propagation: " + numberOfFoldedCommands + " commands folded, " + numberOfResolvedJumps + " jumps resolved");
+        System.out.println("Strength reduction: " + numberOfReducedMuls + " muls replaced");
+        System.out.println("Copy propagation: " + numberOfPropagatedCopies + " reads replaced");
+        System.out.println("Dead-store elimination: " + numberOfRemovedStores + " commands removed");
+    }
+    
+    private Parser propagateConstants (Parser input) {
+        final int [][] values = propagate(input, new int [input.numberOfRegisters], false);
+        List <List <Cmd>> replacements = new ArrayList<>();
+        for (int i=0; i<input.commands.length; i++)
+            replacements.add(values[i] == null ? null : foldConstants(input.commands[i], values[i]));
+        return rewrite(input, replacements);
+    }
+    
+    private Parser propagateCopies (Parser input) {
+        int [] entry = new int [input.numberOfRegisters];
+        Arrays.fill(entry, unknown);
+        final int [][] copies = propagate(input, entry, true);
+        List <List <Cmd>> replacements = new ArrayList<>();
+        for (int i=0; i<input.commands.length; i++)
+            replacements.add(copies[i] == null ? null : replaceCopies(input.commands[i], copies[i]));
+        return rewrite(input, replacements);
+    }
+    
+    //the commands just writing registers are removed, if none of the written registers is live behind them
+    private Parser removeDeadStores (Parser input) {
+        final int numberOfCommands = input.commands.length;
+        BitSet [] uses = new BitSet [numberOfCommands], defs = new BitSet [numberOfCommands];
+        for (int i=0; i<numberOfCommands; i++) {
+            uses[i] = new BitSet();
+            defs[i] = new BitSet();
+            RegisterAllocation.findUsesAndDefs(input.commands[i], uses[i], defs[i]);
+        }
+        final BitSet [] liveOut = RegisterAllocation.computeLiveness(input, uses, defs);
+        
+        List <List <Cmd>> replacements = new ArrayList<>();
+        for (int i=0; i<numberOfCommands; i++) {
+            final Cmd command = input.commands[i];
+            final boolean justWritesRegisters = (command.cmdType == CmdType.Mov ? command.args[0].argType == ArgType.Reg : (command.cmdType == CmdType.Add || command.cmdType == CmdType.Sub || command.cmdType == CmdType.Mul || command.cmdType == CmdType.Div));
+            if (justWritesRegisters && !defs[i].intersects(liveOut[i])) {
+                replacements.add(new ArrayList<Cmd>());
+                removedStores++;
+            } else
+                replacements.add(null);
+        }
+        return rewrite(input, replacements);
+    }
+    
+    //the state in front of every command (null if it is not reached), every entry is a value or a register (copies) or unknown
+    private static int [][] propagate (Parser input, int [] entry, boolean copies) {
+        final int numberOfCommands = input.commands.length;
+        int [][] ret = new int [numberOfCommands+1][];
+        ret[0] = entry;
+        LinkedList <Integer> toVisit = new LinkedList<>();
+        toVisit.add(0);
+        while (!toVisit.isEmpty()) {
+            final int i = toVisit.removeFirst();
+            if (i == numberOfCommands)
+                continue;
+            int [] state = ret[i].clone();
+            if (copies)
+                transferCopies(input.commands[i], state);
+            else
+                transferConstants(input.commands[i], state);
+            for (int successor : RegisterAllocation.getSuccessors(input, i))
+                if (join(ret, successor, state))
+                    toVisit.add(successor);
+        }
+        return ret;
+    }
+    
+    private static boolean join (int [][] states, int cmdOffset, int [] state) {
+        if (states[cmdOffset] == null) {
+            states[cmdOffset] = state.clone();
+            return true;
+        }
+        boolean changed = false;
+        for (int i=0; i<state.length; i++)
+            if (states[cmdOffset][i] != state[i] && states[cmdOffset][i] != unknown) {
+                states[cmdOffset][i] = unknown;
+                changed = true;
+            }
+        return changed;
+    }
+    
+    private static void transferConstants (Cmd command, int [] values) {
+        final Arg [] args = command.args;
+        switch (command.cmdType) {
+            case Mov:
+                if (args[0].argType == ArgType.Reg)
+                    values[args[0].regIndex] = getValue(args[1], values);
+                break;
+            case Add:
+            case Sub:
+                values[args[0].regIndex] = calculate(command.cmdType, values[args[0].regIndex], getValue(args[1], values));
+                break;
+            case Mul:
+                values[args[0].regIndex] = calculate(CmdType.Mul, values[args[1].regIndex], values[args[2].regIndex]);
+                break;
+            case Div:
+                values[args[0].regIndex] = calculate(CmdType.Div, values[args[2].regIndex], values[args[3].regIndex]);
+                values[args[1].regIndex] = calculateRemainder(values[args[2].regIndex], values[args[3].regIndex]);
+                break;
+            case In:
+            case Pop:
+                values[args[0].regIndex] = unknown;
+                break;
+        }
+    }
+    
+    //every written register is not a copy anymore and has no copies anymore, mov $a, $b makes $a a copy of $b (or of the register $b is a copy of)
+    private static void transferCopies (Cmd command, int [] copies) {
+        BitSet use = new BitSet(), def = new BitSet();
+        RegisterAllocation.findUsesAndDefs(command, use, def);
+        for (int d=def.nextSetBit(0); d>=0; d=def.nextSetBit(d+1)) {
+            copies[d] = unknown;
+            for (int i=0; i<copies.length; i++)
+                if (copies[i] == d)
+                    copies[i] = unknown;
+        }
+        if (command.cmdType == CmdType.Mov && command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.Reg)
+            copies[command.args[0].regIndex] = getOriginal(command.args[1].regIndex, copies);
+    }
+    
+    //null if the command is not changed
+    private List <Cmd> foldConstants (Cmd command, int [] values) {
+        final Arg [] args = command.args;
+        switch (command.cmdType) {
+            case Mov: {
+                final int value = getValue(args[1], values);
+                if (args[0].argType == ArgType.Reg) {
+                    final int address = getAddress(args[1], values);
+                    if (value != unknown && values[args[0].regIndex] == value)
+                        return folded();
+                    else if (args[1].argType == ArgType.Reg && value != unknown)
+                        return folded(new Cmd(CmdType.Mov, new Arg [] {args[0], createConst(value)}));
+                    else if (address != unknown)
+                        return folded(new Cmd(CmdType.Mov, new Arg [] {args[0], new Arg(ArgType.MemAddrConst, address, -1, -1)}));
+                    return null;
+                }
+                final int address = getAddress(args[0], values);
+                if (address == unknown && (args[1].argType != ArgType.Reg || value == unknown))
+                    return null;
+                return folded(new Cmd(CmdType.Mov, new Arg [] {(address != unknown ? new Arg(ArgType.MemAddrConst, address, -1, -1) : args[0]), (value != unknown ? createConst(value) : args[1])}));
+            }
+            case Add:
+            case Sub: {
+                final int value = getValue(args[1], values), result = calculate(command.cmdType, values[args[0].regIndex], value);
+                if (value == 0)
+                    return folded();
+                else if (result != unknown)
+                    return folded(new Cmd(CmdType.Mov, new Arg [] {args[0], createConst(result)}));
+                else if (args[1].argType == ArgType.Reg && value != unknown)
+                    return folded(new Cmd(command.cmdType, new Arg [] {args[0], createConst(value)}));
+                return null;
+            }
+            case Mul: {
+                final int factor0 = values[args[1].regIndex], factor1 = values[args[2].regIndex], result = calculate(CmdType.Mul, factor0, factor1);
+                if (result != unknown)
+                    return folded(new Cmd(CmdType.Mov, new Arg [] {args[0], createConst(result)}));
+                final int factor = Math.max(factor0, factor1);
+                if (factor == unknown || factor > maxMulFactor)
+                    return null;
+                final Arg other = (factor0 == unknown ? args[1] : args[2]);
+                List <Cmd> ret = new ArrayList<>();
+                ret.add(new Cmd(CmdType.Mov, new Arg [] {args[0], other}));
+                for (int i=1; i<factor; i++)
+                    ret.add(new Cmd(CmdType.Add, new Arg [] {args[0], other}));
+                reducedMuls++;
+                return ret;
+            }
+            case Div: {
+                final int quotient = calculate(CmdType.Div, values[args[2].regIndex], values[args[3].regIndex]);
+                if (quotient == unknown)
+                    return null;
+                return folded(new Cmd(CmdType.Mov, new Arg [] {args[0], createConst(quotient)}), new Cmd(CmdType.Mov, new Arg [] {args[1], createConst(calculateRemainder(values[args[2].regIndex], values[args[3].regIndex]))}));
+            }
+            case Jz:
+            case Jnz: {
+                final int value = values[args[0].regIndex];
+                if (value == unknown)
+                    return null;
+                return resolved((value == 0) == (command.cmdType == CmdType.Jz), args[1]);
+            }
+            case Je:
+            case Jne:
+            case Jl:
+            case Jle:
+            case Jg:
+            case Jge: {
+                final int value0 = values[args[0].regIndex], value1 = values[args[1].regIndex];
+                if (value0 == unknown || value1 == unknown)
+                    return null;
+                return resolved(compare(command.cmdType, value0, value1), args[2]);
+            }
+            case Out:
+            case Push: {
+                final int value = getValue(args[0], values);
+                if (args[0].argType != ArgType.Reg || value == unknown)
+                    return null;
+                return folded(new Cmd(command.cmdType, new Arg [] {createConst(value)}));
+            }
+            default:
+                return null;
+        }
+    }
+    
+    //null if the command is not changed, a mov between copies of the same register is removed
+    private List <Cmd> replaceCopies (Cmd command, int [] copies) {
+        final Arg [] args = command.args;
+        if (command.cmdType == CmdType.Mov && args[0].argType == ArgType.Reg && args[1].argType == ArgType.Reg && getOriginal(args[0].regIndex, copies) == getOriginal(args[1].regIndex, copies)) {
+            propagatedCopies++;
+            return new ArrayList<>();
+        }
+        
+        Arg [] replaced = args.clone();
+        int numberOfReplaced = 0;
+        for (int i=0; i<args.length; i++) {
+            //the registers of an instruction have to stay different
+            if ((args[i].argType == ArgType.Reg && isRead(command.cmdType, i)) || args[i].argType == ArgType.MemAddr || args[i].argType == ArgType.MemAddrWide) {
+                final int original = copies[args[i].regIndex];
+                if (original != unknown && !isUsed(original, replaced)) {
+                    replaced[i] = new Arg(args[i].argType, args[i].constValue, original, replaced[i].regIndexHigh, args[i].labelIndex);
+                    numberOfReplaced++;
+                }
+            }
+            if (args[i].argType == ArgType.MemAddrWide) {
+                final int original = copies[args[i].regIndexHigh];
+                if (original != unknown && !isUsed(original, replaced)) {
+                    replaced[i] = new Arg(args[i].argType, args[i].constValue, replaced[i].regIndex, original, args[i].labelIndex);
+                    numberOfReplaced++;
+                }
+            }
+        }
+        if (numberOfReplaced == 0)
+            return null;
+        propagatedCopies += numberOfReplaced;
+        List <Cmd> ret = new ArrayList<>();
+        ret.add(new Cmd(command.cmdType, replaced));
+        return ret;
+    }
+    
+    private List <Cmd> folded (Cmd ... commands) {
+        foldedCommands++;
+        return new ArrayList<>(Arrays.asList(commands));
+    }
+    
+    //a jump, which is always taken, becomes a jmp, one which is never taken is removed
+    private List <Cmd> resolved (boolean isTaken, Arg label) {
+        resolvedJumps++;
+        List <Cmd> ret = new ArrayList<>();
+        if (isTaken)
+            ret.add(new Cmd(CmdType.Jmp, new Arg [] {label}));
+        return ret;
+    }
+    
+    //the commands without a replacement (null) are kept, the labels point to the replacement of their command
+    private static Parser rewrite (Parser input, List <List <Cmd>> replacements) {
+        boolean isChanged = false;
+        for (List <Cmd> replacement : replacements)
+            isChanged |= (replacement != null);
+        if (!isChanged)
+            return input;
+        
+        final int length = input.commands.length;
+        List <Cmd> commands = new ArrayList<>();
+        int [] newIndex = new int [length+1];
+        for (int i=0; i<length; i++) {
+            newIndex[i] = commands.size();
+            if (replacements.get(i) == null)
+                commands.add(input.commands[i]);
+            else
+                commands.addAll(replacements.get(i));
+        }
+        newIndex[length] = commands.size();
+        
+        int [] offsets = new int [input.labelOffsets.length];
+        for (int i=0; i<offsets.length; i++)
+            offsets[i] = newIndex[input.labelOffsets[i]];
+        return new Parser(commands.toArray(new Cmd [commands.size()]), offsets, input.numberOfRegisters, input.lastNRegistersReserved, input.globalMemory, input.stackSize);
+    }
+    
+    //mov, add, sub, mul and div just read registers behind the written one (the first one, div writes two)
+    private static boolean isRead (CmdType cmdType, int argIndex) {
+        switch (cmdType) {
+            case Mov:
+            case Add:
+            case Sub:
+            case Mul:
+                return argIndex >= 1;
+            case Div:
+                return argIndex >= 2;
+            case In:
+            case Pop:
+                return false;
+            default:
+                return true;
+        }
+    }
+    
+    private static boolean isUsed (int regIndex, Arg [] args) {
+        for (Arg arg : args)
+            if (((arg.argType == ArgType.Reg || arg.argType == ArgType.MemAddr || arg.argType == ArgType.MemAddrWide) && arg.regIndex == regIndex) || (arg.argType == ArgType.MemAddrWide && arg.regIndexHigh == regIndex))
+                return true;
+        return false;
+    }
+    
+    private static int getOriginal (int regIndex, int [] copies) {
+        return (copies[regIndex] != unknown ? copies[regIndex] : regIndex);
+    }
+    
+    private static int getValue (Arg arg, int [] values) {
+        if (arg.argType == ArgType.Const)
+            return arg.constValue & 0xFF;
+        else if (arg.argType == ArgType.Reg)
+            return values[arg.regIndex];
+        else
+            return unknown;
+    }
+    
+    //[$0] and [$1:$0] with known registers
+    private static int getAddress (Arg arg, int [] values) {
+        if (arg.argType == ArgType.MemAddr)
+            return values[arg.regIndex];
+        else if (arg.argType == ArgType.MemAddrWide && values[arg.regIndex] != unknown && values[arg.regIndexHigh] != unknown)
+            return values[arg.regIndexHigh] * 256 + values[arg.regIndex];
+        else
+            return unknown;
+    }
+    
+    private static Arg createConst (int value) {
+        return new Arg(ArgType.Const, value, -1, -1);
+    }
+    
+    //the bytes wrap around, a div by 0 results in 0 (like the translation of div)
+    private static int calculate (CmdType cmdType, int value0, int value1) {
+        if (cmdType == CmdType.Mul && (value0 == 0 || value1 == 0))
+            return 0;
+        else if (cmdType == CmdType.Div && (value0 == 0 || value1 == 0))
+            return 0;
+        else if (value0 == unknown || value1 == unknown)
+            return unknown;
+        switch (cmdType) {
+            case Add:
+                return (value0 + value1) & 0xFF;
+            case Sub:
+                return (value0 - value1) & 0xFF;
+            case Mul:
+                return (value0 * value1) & 0xFF;
+            case Div:
+                return value0 / value1;
+            default:
+                throw new RuntimeException("arithmetic command expected. (internal error)");
+        }
+    }
+    
+    private static int calculateRemainder (int value0, int value1) {
+        if (value0 == 0 || value1 == 0)
+            return 0;
+        return (value0 == unknown || value1 == unknown ? unknown : value0 % value1);
+    }
+    
+    private static boolean compare (CmdType cmdType, int value0, int value1) {
+        switch (cmdType) {
+            case Je:
+                return value0 == value1;
+            case Jne:
+                return value0 != value1;
+            case Jl:
+                return value0 < value1;
+            case Jle:
+                return value0 <= value1;
+            case Jg:
+                return value0 > value1;
+            case Jge:
+                return value0 >= value1;
+            default:
+                throw new RuntimeException("conditional jump expected. (internal error)");
+        }
+    }
+    
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.Parser.Arg;
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class CallInlining {
+    
+    //removes calls, every call costs a push of the return-address and two round trips through the main-loop (to the function and back):
+    //  inlining: a small function without calls is copied to all of its call sites (its rets jump behind the call), the function itself is removed
+    //  single call site: a function called just once is reached by a jump and its rets jump back behind the call
+    //a function is the code reachable from its label without following calls, it is just changed if no other code reaches it
+    //the return-address is not on the stack anymore, so a function must not pop values it has not pushed itself (opt-in, see Main)
+    
+    public static final int defaultMaxFunctionSize = 32;
+    
+    public final Parser parsed;
+    public final int maxFunctionSize, maxGrowth;
+    public final int numberOfFunctions, numberOfInlinedFunctions, numberOfInlinedCalls, numberOfCallsToJumps;
+    
+    private final Parser original;
+    private final Map <Integer, Set <Integer>> entry2Body = new HashMap<>();
+    private final Map <Integer, List <Integer>> entry2CallSites = new HashMap<>();
+    private final Map <Integer, Integer> numberOfOwners = new HashMap<>();
+    
+    public CallInlining (Parser parsed) {
+        this(parsed, defaultMaxFunctionSize);
+    }
+    
+    //the code grows at most by the size of the original code
+    public CallInlining (Parser parsed, int maxFunctionSize) {
+        this.original = parsed;
+        this.maxFunctionSize = maxFunctionSize;
+        this.maxGrowth = getSize(0, parsed.commands.length-1);
+        
+        for (int i=0; i<parsed.commands.length; i++)
+            if (parsed.commands[i].cmdType == CmdType.Call) {
+                final int entry = getTarget(parsed.commands[i]);
+                if (!entry2CallSites.containsKey(entry))
+                    entry2CallSites.put(entry, new ArrayList<Integer>());
+                entry2CallSites.get(entry).add(i);
+            }
+        numberOfFunctions = entry2CallSites.size();
+        
+        //the code of a function has to be reached just by the function itself (not by the main-code or other functions)
+        List <Integer> entries = new ArrayList<>(entry2CallSites.keySet());
+        entries.add(0);
+        for (int entry : entries) {
+            final Set <Integer> body = findBody(entry);
+            entry2Body.put(entry, body);
+            for (int i : body)
+                numberOfOwners.put(i, (numberOfOwners.containsKey(i) ? numberOfOwners.get(i) : 0) + 1);
+        }
+        Set <Integer> isolated = new HashSet<>();
+        for (int entry : entry2CallSites.keySet()) {
+            boolean isIsolated = entry != 0 && entry < parsed.commands.length;
+            for (int i : entry2Body.get(entry))
+                isIsolated &= numberOfOwners.get(i) == 1;
+            if (isIsolated)
+                isolated.add(entry);
+        }
+        
+        //the smallest functions are inlined first, as long as the growth is in the budget
+        List <Integer> candidates = new ArrayList<>();
+        for (int entry : isolated)
+            if (isInlineable(entry))
+                candidates.add(entry);
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare (Integer entry0, Integer entry1) {
+                return Integer.compare(getGrowth(entry0), getGrowth(entry1));
+            }
+        });
+        Set <Integer> inlined = new HashSet<>();
+        int growth = 0, inlinedCalls = 0;
+        for (int entry : candidates)
+            if (growth + getGrowth(entry) <= maxGrowth) {
+                inlined.add(entry);
+                growth += getGrowth(entry);
+                inlinedCalls += entry2CallSites.get(entry).size();
+            }
+        
+        Set <Integer> jumped = new HashSet<>();
+        for (int entry : isolated)
+            if (!inlined.contains(entry) && entry2CallSites.get(entry).size() == 1 && !entry2Body.get(entry).contains(entry2CallSites.get(entry).get(0)))
+                jumped.add(entry);
+        
+        numberOfInlinedFunctions = inlined.size();
+        numberOfInlinedCalls = inlinedCalls;
+        numberOfCallsToJumps = jumped.size();
+        this.parsed = (inlined.isEmpty() && jumped.isEmpty() ? parsed : rewrite(inlined, jumped));
+    }
+    
+    public void printStatistics () {
+        System.out.println("Inlined functions: " + numberOfInlinedFunctions + " / " + numberOfFunctions + "     (" + numberOfInlinedCalls + " calls inlined, " + numberOfCallsToJumps + " calls replaced by jumps)");
+    }
+    
+    //the commands reachable from entry without following calls (a call continues behind it, ret ends)
+    private Set <Integer> findBody (int entry) {
+        Set <Integer> ret = new HashSet<>();
+        LinkedList <Integer> toVisit = new LinkedList<>();
+        toVisit.add(entry);
+        while (!toVisit.isEmpty()) {
+            final int i = toVisit.removeFirst();
+            if (i >= original.commands.length || !ret.add(i))
+                continue;
+            final Cmd command = original.commands[i];
+            if (command.cmdType == CmdType.Ret)
+                continue;
+            if (command.isJumpInstruction() && command.cmdType != CmdType.Call)
+                toVisit.add(getTarget(command));
+            if (command.cmdType != CmdType.Jmp)
+                toVisit.add(i+1);
+        }
+        return ret;
+    }
+    
+    //the code from the entry to the last command of the body is copied (and removed), it must not contain calls or code of others
+    //and must not fall through at its end, the whole body has to be in this range (no code in front of the entry)
+    private boolean isInlineable (int entry) {
+        final int last = getLast(entry);
+        if (getSize(entry, last) > maxFunctionSize || (original.commands[last].cmdType != CmdType.Ret && original.commands[last].cmdType != CmdType.Jmp))
+            return false;
+        for (int i : entry2Body.get(entry))
+            if (i < entry)
+                return false;
+        for (int i=entry; i<=last; i++)
+            if (original.commands[i].cmdType == CmdType.Call || (numberOfOwners.containsKey(i) && !entry2Body.get(entry).contains(i)))
+                return false;
+        return true;
+    }
+    
+    //the copies minus the removed function
+    private int getGrowth (int entry) {
+        return (entry2CallSites.get(entry).size() - 1) * getSize(entry, getLast(entry));
+    }
+    
+    private int getLast (int entry) {
+        int ret = entry;
+        for (int i : entry2Body.get(entry))
+            ret = Math.max(ret, i);
+        return ret;
+    }
+    
+    //the div-macro is counted with its replacement
+    private int getSize (int fromIncl, int toIncl) {
+        int ret = 0;
+        for (int i=fromIncl; i<=toIncl; i++)
+            ret += (original.commands[i].cmdType == CmdType.Div ? Macro.divMacro.macroCode.commands.length : 1);
+        return ret;
+    }
+    
+    private int getTarget (Cmd command) {
+        return original.labelOffsets[command.args[getLabelArg(command)].labelIndex];
+    }
+    
+    private static int getLabelArg (Cmd command) {
+        for (int i=0; i<command.args.length; i++)
+            if (command.args[i].argType == ArgType.Label)
+                return i;
+        throw new RuntimeException("label expected. (internal error)");
+    }
+    
+    private static Cmd replaceLabel (Cmd command, int labelIndex) {
+        Arg [] args = command.args.clone();
+        args[getLabelArg(command)] = new Arg(ArgType.Label, -1, -1, labelIndex);
+        return new Cmd(command.cmdType, args);
+    }
+    
+    private Parser rewrite (Set <Integer> inlined, Set <Integer> jumped) {
+        final int length = original.commands.length;
+        
+        //the labels behind the calls (return-labels) and the labels of the copies are added behind the original labels
+        //the offsets of the original labels and the return-labels are original indices (translated at the end), the ones of the copies are final
+        List <Integer> labelOffsets = new ArrayList<>();
+        List <Boolean> labelIsFinal = new ArrayList<>();
+        for (int i=0; i<original.labelOffsets.length; i++) {
+            labelOffsets.add(original.labelOffsets[i]);
+            labelIsFinal.add(false);
+        }
+        Map <Integer, Integer> callSite2ReturnLabel = new HashMap<>(), ret2ReturnLabel = new HashMap<>();
+        Set <Integer> removed = new HashSet<>();
+        for (int entry : entry2CallSites.keySet())
+            if (inlined.contains(entry) || jumped.contains(entry)) {
+                for (int callSite : entry2CallSites.get(entry)) {
+                    callSite2ReturnLabel.put(callSite, labelOffsets.size());
+                    labelOffsets.add(callSite+1);
+                    labelIsFinal.add(false);
+                }
+                if (jumped.contains(entry)) {
+                    for (int i : entry2Body.get(entry))
+                        if (original.commands[i].cmdType == CmdType.Ret)
+                            ret2ReturnLabel.put(i, callSite2ReturnLabel.get(entry2CallSites.get(entry).get(0)));
+                } else
+                    for (int i=entry; i<=getLast(entry); i++)
+                        removed.add(i);
+            }
+        
+        List <Cmd> commands = new ArrayList<>();
+        int [] newIndex = new int [length+1];
+        for (int i=0; i<length; i++) {
+            newIndex[i] = commands.size();
+            final Cmd command = original.commands[i];
+            if (removed.contains(i))
+                continue;
+            if (command.cmdType == CmdType.Call && callSite2ReturnLabel.containsKey(i)) {
+                final int entry = getTarget(command);
+                if (jumped.contains(entry))
+                    commands.add(new Cmd(CmdType.Jmp, command.args));
+                else
+                    copyFunction(entry, callSite2ReturnLabel.get(i), commands, labelOffsets, labelIsFinal);
+            } else if (command.cmdType == CmdType.Ret && ret2ReturnLabel.containsKey(i))
+                commands.add(new Cmd(CmdType.Jmp, new Arg [] {new Arg(ArgType.Label, -1, -1, ret2ReturnLabel.get(i))}));
+            else
+                commands.add(command);
+        }
+        newIndex[length] = commands.size();
+        
+        int [] offsets = new int [labelOffsets.size()];
+        for (int i=0; i<offsets.length; i++)
+            offsets[i] = (labelIsFinal.get(i) ? labelOffsets.get(i) : newIndex[labelOffsets.get(i)]);
+        return new Parser(commands.toArray(new Cmd [commands.size()]), offsets, original.numberOfRegisters, original.lastNRegistersReserved, original.globalMemory, original.stackSize);
+    }
+    
+    //the labels inside of the function are copied, its rets jump to the return-label (the last one just falls through)
+    private void copyFunction (int entry, int returnLabel, List <Cmd> commands, List <Integer> labelOffsets, List <Boolean> labelIsFinal) {
+        final int last = getLast(entry);
+        Map <Integer, Integer> labelCopies = new HashMap<>();
+        for (int i=0; i<original.labelOffsets.length; i++)
+            if (original.labelOffsets[i] >= entry && original.labelOffsets[i] <= last) {
+                labelCopies.put(i, labelOffsets.size());
+                labelOffsets.add(commands.size() + original.labelOffsets[i] - entry);
+                labelIsFinal.add(true);
+            }
+        
+        for (int i=entry; i<=last; i++) {
+            final Cmd command = original.commands[i];
+            if (command.cmdType == CmdType.Ret && i == last)
+                continue;
+            else if (command.cmdType == CmdType.Ret)
+                commands.add(new Cmd(CmdType.Jmp, new Arg [] {new Arg(ArgType.Label, -1, -1, returnLabel)}));
+            else if (command.isJumpInstruction() && labelCopies.containsKey(command.args[getLabelArg(command)].labelIndex))
+                commands.add(replaceLabel(command, labelCopies.get(command.args[getLabelArg(command)].labelIndex)));
+            else
+                commands.add(command);
+        }
+    }
+    
+}
@@ -23,26 +23,75 @@
  */
 package assembler;
 
+import assembler.ControlFlowSegments.DispatchMode;
+import assembler.Macro.Expansion;
+import assembler.MiniCode.MemoryModel;
+import assembler.MiniCode.RegisterLayout;
 import assembler.Parser.Arg;
 import assembler.Parser.ArgType;
 import assembler.Parser.Cmd;
 import assembler.Parser.CmdType;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CodeCreation {
      
     public final Parser parsed;
+    public final RegisterAllocation registerAllocation;
     public final MiniCode miniCode;
+    public final DispatchMode dispatchMode;
     
     public CodeCreation (Parser parsed) {
-        this.parsed = replaceAllMacros(parsed);
-        miniCode = new MiniCode(this.parsed.numberOfRegisters);
+        this(parsed, DispatchMode.Linear);
+    }
+    
+    public CodeCreation (Parser parsed, DispatchMode dispatchMode) {
+        this(parsed, dispatchMode, RegisterLayout.Compact);
+    }
+    
+    public CodeCreation (Parser parsed, DispatchMode dispatchMode, RegisterLayout registerLayout) {
+        this(parsed, dispatchMode, registerLayout, MemoryModel.Flat);
+    }
+    
+    public CodeCreation (Parser parsed, DispatchMode dispatchMode, RegisterLayout registerLayout, MemoryModel memoryModel) {
+        this(parsed, dispatchMode, registerLayout, memoryModel, Expansion.Native);
+    }
+    
+    public CodeCreation (Parser parsed, DispatchMode dispatchMode, RegisterLayout registerLayout, MemoryModel memoryModel, Expansion divExpansion) {
+        if (memoryModel == MemoryModel.Flat)
+            for (Cmd command : parsed.commands)
+                for (Arg arg : command.args)
+                    if (arg.argType == ArgType.MemAddrWide)
+                        throw new RuntimeException("wide memory-addresses like [$1:$0] need the wide memory-model (-m wide).");
+        
+        this.registerAllocation = new RegisterAllocation(replaceAllMacros(parsed, divExpansion));
+        this.parsed = registerAllocation.parsed;
+        this.dispatchMode = dispatchMode;
+        miniCode = new MiniCode(this.parsed.numberOfRegisters, (dispatchMode == DispatchMode.BinaryTree ? ControlFlowSegments.getNumberOfDispatchBits(new SegmentSimplification(this.parsed).segmentStarts.size()) : 0), registerLayout, memoryModel, this.parsed.stackSize);
     }
     
     public static Parser replaceAllMacros (Parser parsed) {
+        return replaceAllMacros(parsed, Expansion.Inline);
+    }
+    
+    public static Parser replaceAllMacros (Parser parsed, Expansion divExpansion) {
         Parser ret = parsed;
+        if (divExpansion == Expansion.Native)
+            return ret;
+        Set <Integer> outlined = new HashSet<>();
+        for (int i=0; i<ret.commands.length; i++)
+            if (ret.commands[i].cmdType == CmdType.Div && (divExpansion == Expansion.Outline || (divExpansion == Expansion.Auto && !isInsideOfLoop(ret, i))))
+                outlined.add(i);
+        if (divExpansion == Expansion.Auto && outlined.size() < 2)
+            outlined.clear();
+        if (!outlined.isEmpty())
+            ret = Macro.divMacro.outline(ret, outlined);
+        
         for (int i=0; i<ret.commands.length; i++)
             if (ret.commands[i].cmdType == CmdType.Div) {
                 ret = Macro.divMacro.replace(ret, i);
@@ -52,27 +101,31 @@ public class CodeCreation {
         return ret;
     }
     
-    //position before is 0 and has to be at the end 0 again
+    //a jump behind the command targets a label in front of it (the loops found by StructuredLoops are just a part of them)
+    private static boolean isInsideOfLoop (Parser parsed, int cmdIndex) {
+        for (int i=cmdIndex; i<parsed.commands.length; i++) {
+            final Cmd command = parsed.commands[i];
+            if (command.isJumpInstruction() && command.cmdType != CmdType.Call && command.cmdType != CmdType.Ret && parsed.labelOffsets[command.args[command.args.length-1].labelIndex] <= cmdIndex)
+                return true;
+        }
+        return false;
+    }
+    
+    //the pointer is on the first cell of the tape (the floor of the stack) before and on position 0 at the end
     public String createGlobalInit () {
         List <Integer> globalMemoryKeys = new ArrayList<>();
         globalMemoryKeys.addAll(parsed.globalMemory.keySet());
         Collections.sort(globalMemoryKeys);
-        StringBuilder ret = new StringBuilder();
+        StringBuilder ret = new StringBuilder(miniCode.move(miniCode.getReservedStackFloor(), 0));
+        int position = 0;
         for (int i=0; i<globalMemoryKeys.size(); i++) {
             final int key = globalMemoryKeys.get(i), val = parsed.globalMemory.get(key);
-            final int offset = miniCode.getReservedMemLookupPosition()+1 + (key+parsed.stackSize)*3;
-            
-            final int multiplicator = Math.max(1, (int)Math.round(Math.sqrt(val)));
-            final int val0 = val/multiplicator, val1 = val%multiplicator;
-            ret.append(miniCode.move(0, offset));
-           if (val0 >= 4)
-                ret.append(">").append(miniCode.constantAdd(val0)).append("[-<").append(miniCode.constantAdd(multiplicator)).append(">]<").append(miniCode.constantAdd(val1));
-            else
-                ret.append(miniCode.constantAdd(val));
-            ret.append(miniCode.move(offset, 0));
+            final int offset = miniCode.getDataPosition(key);
+            ret.append(miniCode.move(position, offset)).append(miniCode.constantAdd(val, 1));
+            position = offset;
         }
         
-        return ret.toString();
+        return ret.append(miniCode.move(position, 0)).toString();
     }
     
     //position before is 0 and has to be at the end 0 again
@@ -80,47 +133,75 @@ public class CodeCreation {
         StringBuilder ret = new StringBuilder();
         final boolean containsFinalJump = (toIndexExcl <= parsed.commands.length && fromIndexIncl <= toIndexExcl-1 && parsed.commands[toIndexExcl-1].isJumpInstruction());
         final boolean isFinalSegment = (toIndexExcl >= parsed.commands.length);
+        final Integer loopStart = (containsFinalJump ? parent.loops.loopEnd2Start.get(toIndexExcl-1) : null);
+        
+        //the position is just known inside of the segment, at the jump at the end it has to be 0 again
+        AtomicInteger position = new AtomicInteger(0);
+        if (loopStart != null) {
+            for (int i=fromIndexIncl; i<loopStart; i++)
+                ret.append(createInstruction(parsed.commands[i], position));
+            ret.append(miniCode.move(position.get(), 0)).append(createLoop(parent, loopStart, toIndexExcl-1));
+            return ret.toString();
+        }
         
         for (int i=fromIndexIncl; i<toIndexExcl-(containsFinalJump ? 1 : 0); i++) {
             Cmd command = parsed.commands[i];
             if (command.isJumpInstruction())
                 throw new RuntimeException("jump instruction unexpected. (internal error)");
-            ret.append(createInstruction(command));
+            ret.append(createInstruction(command, position));
         }
+        ret.append(miniCode.move(position.get(), 0));
         
         if (containsFinalJump)
             ret.append(createJumpInstruction(parent, parsed.commands[toIndexExcl-1], toIndexExcl));
         else if (isFinalSegment)
-            ret.append(miniCode.move(0, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd(parent.getSegmentIndex(parsed.commands.length))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, 0));
+            ret.append(setJumpTarget(0, parent.getSegmentIndex(parsed.commands.length)));
         else
             ret.append(createJumpInstruction(parent, null, toIndexExcl));
         return ret.toString();
     }
     
-    //position before is 0 and has to be at the end 0 again
-    private String createInstruction (Cmd command) {
+    //starts at position, which is set to the position at the end (the cell used last, so the next instruction has a short way)
+    private String createInstruction (Cmd command, AtomicInteger position) {
         StringBuilder ret = new StringBuilder();
+        final int currentPosition = position.get();
         switch (command.cmdType) {
             case Mov: {
                 if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.Reg) {
-                    ret.append(miniCode.move(0, command.args[0].regIndex)).append("[-]");
-                    ret.append(miniCode.copyContent(command.args[0].regIndex, command.args[1].regIndex, miniCode.getReservedTmpReserved(), command.args[0].regIndex, 0));
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append("[-]");
+                    ret.append(miniCode.copyContent(getRegisterPosition(command.args[0]), getRegisterPosition(command.args[1]), miniCode.getScratchPosition(getRegisterPosition(command.args[1]), miniCode.getReservedTmpReserved()), getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
                 } else if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.Const) {
-                    ret.append(miniCode.move(0, command.args[0].regIndex)).append("[-]").append(miniCode.constantAdd(command.args[1].constValue));
-                    ret.append(miniCode.move(command.args[0].regIndex, 0));
-                } else if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.MemAddr)
-                    ret.append(miniCode.move(0, command.args[1].regIndex)).append(miniCode.constantAdd(parsed.stackSize)).append(miniCode.copyFromMemAddr(command.args[1].regIndex, command.args[1].regIndex, command.args[0].regIndex, command.args[1].regIndex)).append(miniCode.constantAdd(-parsed.stackSize)).append(miniCode.move(command.args[1].regIndex, 0));
-                else if (command.args[0].argType == ArgType.MemAddr && command.args[1].argType == ArgType.Reg)
-                   ret.append(miniCode.move(0, command.args[0].regIndex)).append(miniCode.constantAdd(parsed.stackSize)).append(miniCode.copyToMemAddr(command.args[0].regIndex, command.args[0].regIndex, command.args[1].regIndex, command.args[0].regIndex)).append(miniCode.constantAdd(-parsed.stackSize)).append(miniCode.move(command.args[0].regIndex, 0));
-                else if (command.args[0].argType == ArgType.MemAddr && command.args[1].argType == ArgType.Const)
-                   ret.append(miniCode.move(0, command.args[0].regIndex)).append(miniCode.constantAdd(parsed.stackSize)).append(miniCode.constantToMemAddr(command.args[0].regIndex, command.args[0].regIndex, command.args[1].constValue, command.args[0].regIndex)).append(miniCode.constantAdd(-parsed.stackSize)).append(miniCode.move(command.args[0].regIndex, 0));
-                else if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.MemAddrConst)
-                    ret.append(miniCode.copyFromMemAddrConst(0, command.args[1].constValue+parsed.stackSize, command.args[0].regIndex, 0));
-                else if (command.args[0].argType == ArgType.MemAddrConst && command.args[1].argType == ArgType.Reg)
-                   ret.append(miniCode.copyToMemAddrConst(0, command.args[0].constValue+parsed.stackSize, command.args[1].regIndex, 0));
-                else if (command.args[0].argType == ArgType.MemAddrConst && command.args[1].argType == ArgType.Const)
-                   ret.append(miniCode.constantToMemAddrConst(0, command.args[0].constValue+parsed.stackSize, command.args[1].constValue, 0));
-                else
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append("[-]").append(miniCode.constantAdd(command.args[1].constValue, getScratchOffset(getRegisterPosition(command.args[0]))));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (miniCode.memoryModel == MemoryModel.Wide && command.args[0].argType == ArgType.Reg && (command.args[1].argType == ArgType.MemAddr || command.args[1].argType == ArgType.MemAddrWide)) {
+                    ret.append(miniCode.copyFromWideMemAddr(currentPosition, getRegisterPosition(command.args[1]), getRegisterPositionHigh(command.args[1]), 0, getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (miniCode.memoryModel == MemoryModel.Wide && (command.args[0].argType == ArgType.MemAddr || command.args[0].argType == ArgType.MemAddrWide) && command.args[1].argType == ArgType.Reg) {
+                    ret.append(miniCode.copyToWideMemAddr(currentPosition, getRegisterPosition(command.args[0]), getRegisterPositionHigh(command.args[0]), 0, getRegisterPosition(command.args[1]), miniCode.getWideMemoryStart()));
+                    position.set(miniCode.getWideMemoryStart());
+                } else if (miniCode.memoryModel == MemoryModel.Wide && (command.args[0].argType == ArgType.MemAddr || command.args[0].argType == ArgType.MemAddrWide) && command.args[1].argType == ArgType.Const) {
+                    ret.append(miniCode.constantToWideMemAddr(currentPosition, getRegisterPosition(command.args[0]), getRegisterPositionHigh(command.args[0]), 0, command.args[1].constValue, miniCode.getWideMemoryStart()));
+                    position.set(miniCode.getWideMemoryStart());
+                } else if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.MemAddr) {
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[1]))).append(miniCode.copyFromMemAddr(getRegisterPosition(command.args[1]), getRegisterPosition(command.args[1]), getRegisterPosition(command.args[0]), getRegisterPosition(command.args[1])));
+                    position.set(getRegisterPosition(command.args[1]));
+                } else if (command.args[0].argType == ArgType.MemAddr && command.args[1].argType == ArgType.Reg) {
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append(miniCode.copyToMemAddr(getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0]), getRegisterPosition(command.args[1]), getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (command.args[0].argType == ArgType.MemAddr && command.args[1].argType == ArgType.Const) {
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append(miniCode.constantToMemAddr(getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0]), command.args[1].constValue, getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.MemAddrConst) {
+                    ret.append(miniCode.copyFromMemAddrConst(currentPosition, command.args[1].constValue, getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (command.args[0].argType == ArgType.MemAddrConst && command.args[1].argType == ArgType.Reg) {
+                    ret.append(miniCode.copyToMemAddrConst(currentPosition, command.args[0].constValue, getRegisterPosition(command.args[1]), miniCode.getConstantMemAddrPosition(command.args[0].constValue)));
+                    position.set(miniCode.getConstantMemAddrPosition(command.args[0].constValue));
+                } else if (command.args[0].argType == ArgType.MemAddrConst && command.args[1].argType == ArgType.Const) {
+                    ret.append(miniCode.constantToMemAddrConst(currentPosition, command.args[0].constValue, command.args[1].constValue, miniCode.getConstantMemAddrPosition(command.args[0].constValue)));
+                    position.set(miniCode.getConstantMemAddrPosition(command.args[0].constValue));
+                } else
                     throw new RuntimeException("unknown mov-command. (internal error)");
                 break;
             }
@@ -128,26 +209,31 @@ public class CodeCreation {
             case Sub:
             {
                 final boolean isAdd = command.cmdType == CmdType.Add;
-                if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.Reg)
-                    ret.append(miniCode.copyContent(0, command.args[1].regIndex, miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved())).append("[-").append(miniCode.move(miniCode.getReservedTmpReserved(), command.args[0].regIndex)).append(isAdd ? "+" : "-").append(miniCode.move(command.args[0].regIndex, miniCode.getReservedTmpReserved())).append("]").append(miniCode.move(miniCode.getReservedTmpReserved(), 0));
-                else {
-                    int constVal = (isAdd ? 1 : -1)*command.args[1].constValue;
-                    boolean constDoAdd = (constVal > 0);
-                    constVal = Math.abs(constVal);
-                    if (constVal != 0)
-                        ret.append(miniCode.move(0, miniCode.getReservedTmpReserved())).append(miniCode.constantAdd(constVal)).append("[-").append(miniCode.move(miniCode.getReservedTmpReserved(), command.args[0].regIndex)).append(constDoAdd ? "+" : "-").append(miniCode.move(command.args[0].regIndex, miniCode.getReservedTmpReserved())).append("]").append(miniCode.move(miniCode.getReservedTmpReserved(), 0));
+                if (command.args[0].argType == ArgType.Reg && command.args[1].argType == ArgType.Reg) {
+                    ret.append(miniCode.copyContent(currentPosition, getRegisterPosition(command.args[1]), miniCode.getScratchPosition(getRegisterPosition(command.args[1]), miniCode.getReservedTmpReserved()+1), miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved())).append("[-").append(miniCode.move(miniCode.getReservedTmpReserved(), getRegisterPosition(command.args[0]))).append(isAdd ? "+" : "-").append(miniCode.move(getRegisterPosition(command.args[0]), miniCode.getReservedTmpReserved())).append("]");
+                    position.set(miniCode.getReservedTmpReserved());
+                } else {
+                    final int constVal = (isAdd ? 1 : -1)*command.args[1].constValue;
+                    if (constVal != 0) {
+                        ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append(miniCode.constantAdd(constVal, getScratchOffset(getRegisterPosition(command.args[0]))));
+                        position.set(getRegisterPosition(command.args[0]));
+                    }
                 }
                 break;
             }
             case Mul: {
-                ret.append(miniCode.move(0, command.args[0].regIndex)).append("[-]");
-                ret.append(miniCode.copyContent(command.args[0].regIndex, command.args[2].regIndex, miniCode.getReservedTmpReserved()+3, miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()));
-                ret.append(miniCode.copyContent(miniCode.getReservedTmpReserved(), command.args[1].regIndex, miniCode.getReservedTmpReserved()+3, miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()));
-                ret.append("[").append(miniCode.copyContent(miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()+3, miniCode.getReservedTmpReserved()+2, miniCode.getReservedTmpReserved())).append(miniCode.moveContentToZeroCell(miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()+2, command.args[0].regIndex, miniCode.getReservedTmpReserved())).append("-]>[-]").append(miniCode.move(miniCode.getReservedTmpReserved()+1, 0));
+                ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append("[-]");
+                ret.append(miniCode.copyContent(getRegisterPosition(command.args[0]), getRegisterPosition(command.args[2]), miniCode.getScratchPosition(getRegisterPosition(command.args[2]), miniCode.getReservedTmpReserved()+3), miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()));
+                ret.append(miniCode.copyContent(miniCode.getReservedTmpReserved(), getRegisterPosition(command.args[1]), miniCode.getScratchPosition(getRegisterPosition(command.args[1]), miniCode.getReservedTmpReserved()+3), miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()));
+                ret.append("[").append(miniCode.copyContent(miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()+3, miniCode.getReservedTmpReserved()+2, miniCode.getReservedTmpReserved())).append(miniCode.moveContentToZeroCell(miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()+2, getRegisterPosition(command.args[0]), miniCode.getReservedTmpReserved())).append("-]>[-]");
+                position.set(miniCode.getReservedTmpReserved()+1);
+                break;
+            }
+            case Div: {
+                ret.append(miniCode.divMod(currentPosition, getRegisterPosition(command.args[2]), getRegisterPosition(command.args[3]), getRegisterPosition(command.args[0]), getRegisterPosition(command.args[1]), miniCode.getReservedTmpReserved()+1));
+                position.set(miniCode.getReservedTmpReserved()+1);
                 break;
             }
-            case Div:
-                throw new RuntimeException("div should have been replaced with a macro. (internal error)");
             
             case Jmp:
             case Jz:
@@ -163,7 +249,8 @@ public class CodeCreation {
                 throw new RuntimeException("jump instruction not expected here. (internal error)");
                 
             case In: {
-                ret.append(miniCode.move(0, command.args[0].regIndex) + "," + miniCode.move(command.args[0].regIndex, 0));
+                ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append(",");
+                position.set(getRegisterPosition(command.args[0]));
                 break;
             }
                 
@@ -171,22 +258,28 @@ public class CodeCreation {
             case Pop:
             {
                 final boolean isPush = command.cmdType == CmdType.Push;
-                if (!isPush)
-                    ret.append(miniCode.move(0, miniCode.getReservedStackPtr())).append("-").append(miniCode.copyFromMemAddr(miniCode.getReservedStackPtr(), miniCode.getReservedStackPtr(), command.args[0].regIndex, 0));
-                else if (isPush && command.args[0].argType == ArgType.Reg)
-                   ret.append(miniCode.copyToMemAddr(0, miniCode.getReservedStackPtr(), command.args[0].regIndex, miniCode.getReservedStackPtr())).append(miniCode.constantAdd(1)).append(miniCode.move(miniCode.getReservedStackPtr(), 0));
-                else if (isPush && command.args[0].argType == ArgType.Const)
-                   ret.append(miniCode.constantToMemAddr(0, miniCode.getReservedStackPtr(), command.args[0].constValue, miniCode.getReservedStackPtr())).append(miniCode.constantAdd(1)).append(miniCode.move(miniCode.getReservedStackPtr(), 0));
-                else
+                if (!isPush) {
+                    ret.append(miniCode.moveFromStack(currentPosition, getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0])));
+                    position.set(getRegisterPosition(command.args[0]));
+                } else if (isPush && command.args[0].argType == ArgType.Reg) {
+                   ret.append(miniCode.copyToStack(currentPosition, getRegisterPosition(command.args[0]), miniCode.getReservedStackFloor()));
+                   position.set(miniCode.getReservedStackFloor());
+                } else if (isPush && command.args[0].argType == ArgType.Const) {
+                   ret.append(miniCode.constantToStack(currentPosition, command.args[0].constValue, miniCode.getReservedStackFloor()));
+                   position.set(miniCode.getReservedStackFloor());
+                } else
                     throw new RuntimeException("unknown push/pop-command. (internal error)");
                 break;
             }
             
             case Out: {
-                if (command.args[0].argType == ArgType.Const)
-                    ret.append(miniCode.move(0, miniCode.getReservedTmpReserved())).append(miniCode.constantAdd(command.args[0].constValue)).append(".[-]").append(miniCode.move(miniCode.getReservedTmpReserved(), 0));
-                else
-                    ret.append(miniCode.move(0, command.args[0].regIndex)).append(".").append(miniCode.move(command.args[0].regIndex, 0));
+                if (command.args[0].argType == ArgType.Const) {
+                    ret.append(miniCode.move(currentPosition, miniCode.getReservedTmpReserved())).append(miniCode.constantAdd(command.args[0].constValue, 1)).append(".[-]");
+                    position.set(miniCode.getReservedTmpReserved());
+                } else {
+                    ret.append(miniCode.move(currentPosition, getRegisterPosition(command.args[0]))).append(".");
+                    position.set(getRegisterPosition(command.args[0]));
+                }
                 break;
             }
             default:
@@ -199,17 +292,19 @@ public class CodeCreation {
     private String createJumpInstruction (ControlFlowSegments parent, Cmd command, int offsetSuccessor) {
         StringBuilder ret = new StringBuilder();
         if (command != null && command.cmdType == CmdType.Jmp)
-            ret.append(miniCode.move(0, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd(parent.getSegmentIndex(parsed.labelOffsets[command.args[0].labelIndex]))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, 0));
+            ret.append(setJumpTarget(0, parent.getSegmentIndex(parsed.labelOffsets[command.args[0].labelIndex])));
         else if (command != null && (command.cmdType == CmdType.Jz || command.cmdType == CmdType.Jnz)) {
             final int jmpDstNonZero = parent.getSegmentIndex(offsetSuccessor);
             final int jmpDstZero = parent.getSegmentIndex(parsed.labelOffsets[command.args[1].labelIndex]);
-            ret.append(miniCode.copyContent(0, command.args[0].regIndex, miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved())).append(">+<[").append(miniCode.move(miniCode.getReservedTmpReserved(), miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd((command.cmdType == CmdType.Jz ? jmpDstNonZero : jmpDstZero))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, miniCode.getReservedTmpReserved())).append("[-]>-<]>[").append(miniCode.move(miniCode.getReservedTmpReserved()+1, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd((command.cmdType == CmdType.Jz ? jmpDstZero : jmpDstNonZero))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, miniCode.getReservedTmpReserved()+1)).append("-]").append(miniCode.move(miniCode.getReservedTmpReserved()+1, 0));
+            ret.append(miniCode.copyContent(0, getRegisterPosition(command.args[0]), miniCode.getScratchPosition(getRegisterPosition(command.args[0]), miniCode.getReservedTmpReserved()+1), miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved())).append(">+<[").append(setJumpTarget(miniCode.getReservedTmpReserved(), (command.cmdType == CmdType.Jz ? jmpDstNonZero : jmpDstZero))).append("[-]>-<]>[").append(setJumpTarget(miniCode.getReservedTmpReserved()+1, (command.cmdType == CmdType.Jz ? jmpDstZero : jmpDstNonZero))).append("-]").append(miniCode.move(miniCode.getReservedTmpReserved()+1, 0));
         } else if (command != null && (command.cmdType == CmdType.Je || command.cmdType == CmdType.Jne || command.cmdType == CmdType.Jl || command.cmdType == CmdType.Jle || command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge)) {
             final int jmpDstNonZero = parent.getSegmentIndex(offsetSuccessor);
             final int jmpDstZero = parent.getSegmentIndex(parsed.labelOffsets[command.args[2].labelIndex]);
             final boolean jumpIfZero = (command.cmdType == CmdType.Je);
-            ret.append(miniCode.copyContent(0, command.args[(command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge ? 1 : 0)].regIndex, miniCode.getReservedTmpReserved()+2, miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()));
-            ret.append(miniCode.copyContent(miniCode.getReservedTmpReserved(), command.args[(command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge ? 0 : 1)].regIndex, miniCode.getReservedTmpReserved()+2, miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()+1));
+            final int firstPosition = getRegisterPosition(command.args[(command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge ? 1 : 0)]);
+            final int secondPosition = getRegisterPosition(command.args[(command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge ? 0 : 1)]);
+            ret.append(miniCode.copyContent(0, firstPosition, miniCode.getScratchPosition(firstPosition, miniCode.getReservedTmpReserved()+2), miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()));
+            ret.append(miniCode.copyContent(miniCode.getReservedTmpReserved(), secondPosition, miniCode.getScratchPosition(secondPosition, miniCode.getReservedTmpReserved()+2), miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved()+1));
             if (command.cmdType == CmdType.Je || command.cmdType == CmdType.Jne)
                 ret.append("[-<->]<");
             else if (command.cmdType == CmdType.Jg || command.cmdType == CmdType.Jge || command.cmdType == CmdType.Jl || command.cmdType == CmdType.Jle) {
@@ -217,18 +312,147 @@ public class CodeCreation {
                     ret.append("+");
                 ret.append("[").append(miniCode.copyContent(miniCode.getReservedTmpReserved()+1, miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()+4, miniCode.getReservedTmpReserved()+3, miniCode.getReservedTmpReserved()+1)).append(">+>[<->[-]]<<-<->]<[-]>>[-<<+>>]<<");
             }
-            ret.append(">+<[").append(miniCode.move(miniCode.getReservedTmpReserved(), miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd((jumpIfZero ? jmpDstNonZero : jmpDstZero))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, miniCode.getReservedTmpReserved())).append("[-]>-<]>[").append(miniCode.move(miniCode.getReservedTmpReserved()+1, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd((jumpIfZero ? jmpDstZero : jmpDstNonZero))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, miniCode.getReservedTmpReserved()+1)).append("-]").append(miniCode.move(miniCode.getReservedTmpReserved()+1, 0));
+            ret.append(">+<[").append(setJumpTarget(miniCode.getReservedTmpReserved(), (jumpIfZero ? jmpDstNonZero : jmpDstZero))).append("[-]>-<]>[").append(setJumpTarget(miniCode.getReservedTmpReserved()+1, (jumpIfZero ? jmpDstZero : jmpDstNonZero))).append("-]").append(miniCode.move(miniCode.getReservedTmpReserved()+1, 0));
         } else if (command != null && command.cmdType == CmdType.Call) {
             final int jmpBack = parent.getSegmentIndex(offsetSuccessor);
-            ret.append(createInstruction(new Cmd(CmdType.Push, new Arg [] {new Arg(ArgType.Const, jmpBack, -1, -1)})));
-            ret.append(miniCode.move(0, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd(parent.getSegmentIndex(parsed.labelOffsets[command.args[0].labelIndex]))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, 0));
+            AtomicInteger position = new AtomicInteger(0);
+            for (int i=0; i<getReturnAddressSize(); i++)
+                ret.append(createInstruction(new Cmd(CmdType.Push, new Arg [] {new Arg(ArgType.Const, (jmpBack >> (8*i)) & 0xFF, -1, -1)}), position));
+            ret.append(miniCode.move(position.get(), 0));
+            ret.append(setJumpTarget(0, parent.getSegmentIndex(parsed.labelOffsets[command.args[0].labelIndex])));
+        } else if (command != null && command.cmdType == CmdType.Ret && dispatchMode == DispatchMode.BinaryTree) {
+            for (int i=getReturnAddressSize()-1; i>=0; i--)
+                ret.append(miniCode.moveFromStack(0, miniCode.getReservedMainLoopPosition()+3, 0)).append(createReturnAddressToDispatchBits(8*i));
         } else if (command != null && command.cmdType == CmdType.Ret)
-            ret.append(miniCode.move(0, miniCode.getReservedStackPtr())).append("-").append(miniCode.copyFromMemAddr(miniCode.getReservedStackPtr(), miniCode.getReservedStackPtr(), miniCode.getReservedMainLoopPosition()+1, 0));
+            ret.append(miniCode.moveFromStack(0, miniCode.getReservedMainLoopPosition()+1, 0));
         else if (command == null)
-            ret.append(miniCode.move(0, miniCode.getReservedMainLoopPosition()+1)).append(miniCode.constantAdd(parent.getSegmentIndex(offsetSuccessor))).append(miniCode.move(miniCode.getReservedMainLoopPosition()+1, 0));
+            ret.append(setJumpTarget(0, parent.getSegmentIndex(offsetSuccessor)));
         else
             throw new RuntimeException("unknown jump instruction. (internal error)");
         return ret.toString();
     }
     
+    //position before is 0 and has to be at the end 0 again
+    //the flag (tmp main-loop2) is set as long as the back-edge jumps, the loop sets the target segment when it is left
+    //the memory cursor of the loop (see MemoryCursors) is laid in front of the loop and removed behind it
+    private String createLoop (ControlFlowSegments parent, int fromIncl, int toIncl) {
+        final int flag = miniCode.getReservedMainLoopPosition()+3;
+        final Integer cursorRegister = parent.cursors.loopEnd2Register.get(toIncl);
+        final String loop = miniCode.move(0, flag) + "+[-" + miniCode.move(flag, 0) + createLoopBody(parent, fromIncl, toIncl, new AtomicInteger(0), (cursorRegister != null ? cursorRegister : -1)) + miniCode.move(0, flag) + "]" + miniCode.move(flag, 0);
+        if (cursorRegister == null)
+            return loop;
+        return miniCode.createMemoryCursor(0, miniCode.getRegisterPosition(cursorRegister), 0) + loop + miniCode.removeMemoryCursor(0, 0);
+    }
+    
+    //the position is 0 again in front of every jump instruction
+    //the rest of the body behind an inner jz/jnz is created inside of its conditional, so the code closing the conditionals
+    //is collected (innermost first) and appended behind the end of the loop, the body is created without recursion
+    private String createLoopBody (ControlFlowSegments parent, int fromIncl, int loopEnd, AtomicInteger position, int cursorRegister) {
+        StringBuilder ret = new StringBuilder();
+        LinkedList <String> closingCode = new LinkedList<>();
+        for (int cmdOffset=fromIncl; cmdOffset<=loopEnd; cmdOffset++) {
+            final Cmd command = parsed.commands[cmdOffset];
+            if (command.isJumpInstruction() && position.get() != 0) {
+                ret.append(miniCode.move(position.get(), 0));
+                position.set(0);
+            }
+            if (cmdOffset == loopEnd) {
+                final String setFlag = miniCode.move(0, miniCode.getReservedMainLoopPosition()+3) + "+" + miniCode.move(miniCode.getReservedMainLoopPosition()+3, 0);
+                if (command.cmdType == CmdType.Jmp)
+                    ret.append(setFlag);
+                else {
+                    final String leave = setJumpTarget(0, parent.getSegmentIndex(loopEnd+1));
+                    ret.append(createConditional(getRegisterPosition(command.args[0]), (command.cmdType == CmdType.Jnz ? setFlag : leave), (command.cmdType == CmdType.Jnz ? leave : setFlag)));
+                }
+            } else if (command.isJumpInstruction()) {
+                //the body stays in the branch of the conditional, which does not jump
+                final String leave = setJumpTarget(0, parent.getSegmentIndex(parsed.labelOffsets[command.args[1].labelIndex]));
+                ret.append(createConditionalHead(getRegisterPosition(command.args[0])));
+                if (command.cmdType == CmdType.Jnz) {
+                    ret.append(leave).append(createConditionalMiddle());
+                    closingCode.push(createConditionalTail());
+                } else
+                    closingCode.push(createConditionalMiddle() + leave + createConditionalTail());
+            } else if (cursorRegister != -1 && MemoryCursors.isCursorRead(command, cursorRegister)) {
+                ret.append(miniCode.copyFromMemoryCursor(position.get(), getRegisterPosition(command.args[0]), getRegisterPosition(command.args[0])));
+                position.set(getRegisterPosition(command.args[0]));
+            } else if (cursorRegister != -1 && parent.cursors.getStride(command, cursorRegister) != 0) {
+                ret.append(createInstruction(command, position)).append(miniCode.moveMemoryCursor(position.get(), parent.cursors.getStride(command, cursorRegister), getRegisterPosition(command.args[0]), miniCode.getReservedMemLookupPosition()-1));
+                position.set(miniCode.getReservedMemLookupPosition()-1);
+            } else
+                ret.append(createInstruction(command, position));
+        }
+        while (!closingCode.isEmpty())
+            ret.append(closingCode.pop());
+        return ret.toString();
+    }
+    
+    //position before is 0 and has to be at the end 0 again (the code of the branches as well)
+    //the conditional is head + codeNonZero + middle + codeZero + tail (the loop bodies are created in these parts)
+    private String createConditional (int registerPosition, String codeNonZero, String codeZero) {
+        return createConditionalHead(registerPosition) + codeNonZero + createConditionalMiddle() + codeZero + createConditionalTail();
+    }
+    
+    private String createConditionalHead (int registerPosition) {
+        return miniCode.copyContent(0, registerPosition, miniCode.getScratchPosition(registerPosition, miniCode.getReservedTmpReserved()+1), miniCode.getReservedTmpReserved(), miniCode.getReservedTmpReserved()) + ">+<[[-]>-" + miniCode.move(miniCode.getReservedTmpReserved()+1, 0);
+    }
+    
+    private String createConditionalMiddle () {
+        return miniCode.move(0, miniCode.getReservedTmpReserved()) + "]>[-" + miniCode.move(miniCode.getReservedTmpReserved()+1, 0);
+    }
+    
+    private String createConditionalTail () {
+        return miniCode.move(0, miniCode.getReservedTmpReserved()+1) + "]" + miniCode.move(miniCode.getReservedTmpReserved()+1, 0);
+    }
+    
+    private int getRegisterPosition (Arg arg) {
+        return miniCode.getRegisterPosition(arg.regIndex);
+    }
+    
+    //the register of the high byte of a wide memory-address or -1 (the high byte is 0)
+    private int getRegisterPositionHigh (Arg arg) {
+        return (arg.argType == ArgType.MemAddrWide ? miniCode.getRegisterPosition(arg.regIndexHigh) : -1);
+    }
+    
+    //the offset of a cell, which is 0 between the instructions and can be used by constantAdd
+    private int getScratchOffset (int registerPosition) {
+        return miniCode.getScratchPosition(registerPosition, miniCode.getReservedTmpReserved()) - registerPosition;
+    }
+    
+    //sets the segment, which is executed after the current one (the target is 0 before)
+    private String setJumpTarget (int currentPosition, int segmentIndex) {
+        if (dispatchMode == DispatchMode.Linear)
+            return miniCode.move(currentPosition, miniCode.getReservedMainLoopPosition()+1) + miniCode.constantAdd(segmentIndex, 1) + miniCode.move(miniCode.getReservedMainLoopPosition()+1, currentPosition);
+        
+        StringBuilder ret = new StringBuilder();
+        int position = currentPosition;
+        for (int bit=0; bit<miniCode.numberOfDispatchBits; bit++)
+            if (((segmentIndex >> (miniCode.numberOfDispatchBits-1 - bit)) & 1) != 0) {
+                ret.append(miniCode.move(position, miniCode.getReservedNextDispatchBit(bit))).append("+");
+                position = miniCode.getReservedNextDispatchBit(bit);
+            }
+        ret.append(miniCode.move(position, currentPosition));
+        return ret.toString();
+    }
+    
+    //number of bytes on the stack for a return address (the binary tree dispatch can have more than 256 segments)
+    private int getReturnAddressSize () {
+        return Math.max(1, (miniCode.numberOfDispatchBits+7) / 8);
+    }
+    
+    //position before is 0 and has to be at the end 0 again
+    //the byte in tmp main-loop2 is divided by 2 once per bit, the remainder is the next dispatch-bit (lowest bit first)
+    private String createReturnAddressToDispatchBits (int lowestBit) {
+        final int value = miniCode.getReservedMainLoopPosition()+3, flag = miniCode.getReservedMainLoopPosition()+2, quotient = miniCode.getReservedTmpReserved();
+        StringBuilder ret = new StringBuilder();
+        for (int i=lowestBit; i<lowestBit+8 && i<miniCode.numberOfDispatchBits; i++) {
+            final int bit = miniCode.getReservedNextDispatchBit(miniCode.numberOfDispatchBits-1 - i);
+            ret.append(miniCode.move(0, value)).append("[-").append(miniCode.move(value, flag)).append("+").append(miniCode.move(flag, bit)).append("[-").append(miniCode.move(bit, quotient)).append("+").append(miniCode.move(quotient, flag)).append("-").append(miniCode.move(flag, bit)).append("]");
+            ret.append(miniCode.move(bit, flag)).append("[-").append(miniCode.move(flag, bit)).append("+").append(miniCode.move(bit, flag)).append("]").append(miniCode.move(flag, value)).append("]");
+            ret.append(miniCode.move(value, quotient)).append("[-").append(miniCode.move(quotient, value)).append("+").append(miniCode.move(value, quotient)).append("]").append(miniCode.move(quotient, 0));
+        }
+        ret.append(miniCode.move(0, value)).append("[-]").append(miniCode.move(value, 0));
+        return ret.toString();
+    }
+    
 }
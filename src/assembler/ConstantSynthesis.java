@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ConstantSynthesis {
+    
+    //the cells are bytes, so a constant just has to be reached modulo 256 (adding 250 is the same as subtracting 6)
+    //a constant is either added directly (+++..) or with a loop on a scratch-cell, which has to be 0 before and is 0 again after:
+    //  [scratch] k times +, [- [target] b times +/- [scratch] ], [target] r times +/-      (adds k*b+r)
+    //the shortest code for every constant is precomputed once per distance between the target and the scratch-cell
+    
+    private static final Map <Integer, String []> tables = new HashMap<>();
+    
+    //starts and ends on the target-cell
+    public static String constantAdd (int addConstant, int scratchOffset) {
+        String [] table = tables.get(scratchOffset);
+        if (table == null) {
+            table = createTable(scratchOffset);
+            tables.put(scratchOffset, table);
+        }
+        return table[addConstant & 0xFF];
+    }
+    
+    //returns {added constant (modulo 256), end of the code (exclusive)} of the code created by constantAdd at position
+    //(the moves back to the target-cell may be merged with the following moves)
+    public static int [] parse (String code, int position) {
+        if (position < code.length() && (code.charAt(position) == '>' || code.charAt(position) == '<')) {
+            final char toScratch = code.charAt(position), toTarget = (toScratch == '>' ? '<' : '>');
+            final int distance = countRepeated(code, position, toScratch);
+            int i = position + distance;
+            final int count = countRepeated(code, i, '+');
+            i += count;
+            if (count > 0 && code.startsWith("[-", i) && countRepeated(code, i+2, toTarget) == distance) {
+                i += 2 + distance;
+                final int [] add = parseAdd(code, i);
+                i = add[1];
+                if (add[0] != 0 && countRepeated(code, i, toScratch) == distance && code.startsWith("]", i+distance) && countRepeated(code, i+distance+1, toTarget) >= distance) {
+                    final int [] rest = parseAdd(code, i+distance+1+distance);
+                    return new int [] {(count*add[0] + rest[0]) & 0xFF, rest[1]};
+                }
+            }
+        }
+        final int [] add = parseAdd(code, position);
+        return new int [] {add[0] & 0xFF, add[1]};
+    }
+    
+    private static String [] createTable (int scratchOffset) {
+        if (scratchOffset == 0)
+            throw new RuntimeException("the scratch-cell can not be the target-cell. (internal error)");
+        final int distance = Math.abs(scratchOffset);
+        
+        //the cheapest loop (k, b) for every product k*b
+        int [] loopCost = new int [256], loopCount = new int [256], loopAdd = new int [256];
+        Arrays.fill(loopCost, Integer.MAX_VALUE);
+        for (int count=2; count<=128; count++)
+            for (int add=-128; add<=127; add++) {
+                final int product = (count*add) & 0xFF, cost = count + Math.abs(add) + 4*distance + 3;
+                if (add != 0 && cost < loopCost[product]) {
+                    loopCost[product] = cost;
+                    loopCount[product] = count;
+                    loopAdd[product] = add;
+                }
+            }
+        
+        MiniCode miniCode = new MiniCode(0);
+        String [] ret = new String [256];
+        for (int value=0; value<256; value++) {
+            int bestCost = Math.abs((byte)value), bestProduct = -1;
+            for (int product=0; product<256; product++)
+                if (loopCost[product] != Integer.MAX_VALUE && loopCost[product] + Math.abs((byte)(value-product)) < bestCost) {
+                    bestCost = loopCost[product] + Math.abs((byte)(value-product));
+                    bestProduct = product;
+                }
+            if (bestProduct == -1)
+                ret[value] = miniCode.constantAdd((byte)value);
+            else
+                ret[value] = miniCode.move(0, scratchOffset) + miniCode.constantAdd(loopCount[bestProduct]) + "[-" + miniCode.move(scratchOffset, 0) + miniCode.constantAdd(loopAdd[bestProduct]) + miniCode.move(0, scratchOffset) + "]" + miniCode.move(scratchOffset, 0) + miniCode.constantAdd((byte)(value-bestProduct));
+        }
+        return ret;
+    }
+    
+    //returns {number of '+' - number of '-', end (exclusive)}
+    private static int [] parseAdd (String code, int position) {
+        int value = 0, i = position;
+        for (; i<code.length() && (code.charAt(i) == '+' || code.charAt(i) == '-'); i++)
+            value += (code.charAt(i) == '+' ? 1 : -1);
+        return new int [] {value, i};
+    }
+    
+    private static int countRepeated (String code, int position, char c) {
+        int i = position;
+        while (i < code.length() && code.charAt(i) == c)
+            i++;
+        return i-position;
+    }
+    
+}
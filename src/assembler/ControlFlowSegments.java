@@ -33,14 +33,30 @@ import java.util.Set;
 
 public class ControlFlowSegments {
     
+    //Linear: every segment is tested one after another (O(segments) per jump, at most 254 segments)
+    //BinaryTree: the segment-index is stored in dispatch-bits and tested bit by bit (O(log(segments)) per jump)
+    public enum DispatchMode {Linear, BinaryTree};
+    
     public final CodeCreation codeCreation;
+    public final SegmentSimplification simplification;
+    public final StructuredLoops loops;
+    public final MemoryCursors cursors;
     public final List <Integer> offsetsSorted;
     public final Map <Integer, Integer> offset2SegmentIndex = new HashMap<>();
     
     public ControlFlowSegments (CodeCreation codeCreation) {
         this.codeCreation = codeCreation;
-        final Parser parsed = codeCreation.parsed;
-        
+        simplification = new SegmentSimplification(codeCreation.parsed);
+        loops = simplification.loops;
+        cursors = new MemoryCursors(codeCreation.parsed, loops, codeCreation.miniCode.memoryModel);
+        offsetsSorted = simplification.segmentStarts;
+        for (int i=0; i<offsetsSorted.size(); i++)
+            offset2SegmentIndex.put(offsetsSorted.get(i), i);
+    }
+    
+    //a segment starts at the beginning, at every label and behind every jump instruction (the end is the last segment)
+    //except of labels and jumps inside of structured loops, they are part of the segment
+    public static List <Integer> findSegmentStarts (Parser parsed, StructuredLoops loops) {
         Set <Integer> startPts = new HashSet<>();
         startPts.add(0);
         startPts.add(parsed.commands.length);
@@ -51,16 +67,29 @@ public class ControlFlowSegments {
             if (parsed.commands[i].isJumpInstruction())
                 startPts.add(i+1);
         
+        for (Map.Entry <Integer, Integer> loop : loops.loopEnd2Start.entrySet()) {
+            for (int i=loop.getValue()+1; i<=loop.getKey(); i++)
+                startPts.remove(i);
+            if (loop.getValue() > 0 && !parsed.commands[loop.getValue()-1].isJumpInstruction())
+                startPts.remove(loop.getValue());
+        }
+        
         List <Integer> startPtsSorted = new ArrayList<>();
         startPtsSorted.addAll(startPts);
         Collections.sort(startPtsSorted);
-        
-        offsetsSorted = startPtsSorted;
-        for (int i=0; i<offsetsSorted.size(); i++)
-            offset2SegmentIndex.put(offsetsSorted.get(i), i);
+        return startPtsSorted;
+    }
+    
+    //the binary tree dispatch needs one bit per level
+    public static int getNumberOfDispatchBits (int numberOfSegments) {
+        int ret = 0;
+        while ((1 << ret) < numberOfSegments)
+            ret++;
+        return ret;
     }
     
     public int getSegmentIndex (int cmdOffset) {
+        cmdOffset = simplification.getJumpTarget(cmdOffset);
         if (cmdOffset == codeCreation.parsed.commands.length)
             return offset2SegmentIndex.get(offsetsSorted.get(offsetsSorted.size()-1));
         else if (offset2SegmentIndex.containsKey(cmdOffset))
@@ -70,15 +99,70 @@ public class ControlFlowSegments {
     }
     
     public String createMainLoop () {
+        if (codeCreation.dispatchMode == DispatchMode.BinaryTree)
+            return createMainLoopBinaryTree();
+        if (offsetsSorted.size()+1 > 255)
+            throw new RuntimeException("too many jump destinations for the linear dispatch (" + offsetsSorted.size() + " segments, use the binary tree dispatch).");
+        
         final MiniCode miniCode = codeCreation.miniCode;
         StringBuilder ret = new StringBuilder();
         ret.append(codeCreation.createGlobalInit()).append(miniCode.move(0, miniCode.getReservedMainLoopPosition())).append("+[[-]>[-<+>]<");
         for (int i=0; i<offsetsSorted.size(); i++) {
-            final int fromIncl = offsetsSorted.get(i), toExcl = (i < offsetsSorted.size()-1 ? offsetsSorted.get(i+1) : codeCreation.parsed.commands.length);
-            ret.append(miniCode.copyContent(miniCode.getReservedMainLoopPosition(), miniCode.getReservedMainLoopPosition(), miniCode.getReservedMainLoopPosition()+3, miniCode.getReservedMainLoopPosition()+2, miniCode.getReservedMainLoopPosition())).append(">>>+<[[-]>-<]>[-").append(miniCode.move(miniCode.getReservedMainLoopPosition()+3, 0)).append(codeCreation.create(this, fromIncl, toExcl)).append(miniCode.move(0, miniCode.getReservedMainLoopPosition())).append((i != offsetsSorted.size()-1 ? miniCode.constantAdd(offsetsSorted.size()+1) : "[-]")).append(">>>]<<<" + (i != offsetsSorted.size()-1 ? "-" : ""));
+            ret.append(createSegmentTest(miniCode)).append(miniCode.move(miniCode.getReservedMainLoopPosition()+3, 0)).append(createSegment(i)).append(miniCode.move(0, miniCode.getReservedMainLoopPosition())).append((i != offsetsSorted.size()-1 ? miniCode.constantAdd(offsetsSorted.size()+1, 2) : "[-]")).append(">>>]<<<" + (i != offsetsSorted.size()-1 ? "-" : ""));
         }
         ret.append("]");
         return ret.toString();
     }
     
+    //the main-loop position stays 1 until the last segment is reached, the target segment is in the next dispatch-bits
+    //(set by CodeCreation), they are moved to the dispatch-bits which are tested (and cleared) from the highest bit to the lowest
+    private String createMainLoopBinaryTree () {
+        final MiniCode miniCode = codeCreation.miniCode;
+        StringBuilder ret = new StringBuilder();
+        ret.append(codeCreation.createGlobalInit()).append(miniCode.move(0, miniCode.getReservedMainLoopPosition())).append("+[");
+        for (int bit=0; bit<miniCode.numberOfDispatchBits; bit++)
+            ret.append(miniCode.move(miniCode.getReservedMainLoopPosition(), miniCode.getReservedNextDispatchBit(bit))).append("[-").append(miniCode.move(miniCode.getReservedNextDispatchBit(bit), miniCode.getReservedDispatchBit(bit))).append("+").append(miniCode.move(miniCode.getReservedDispatchBit(bit), miniCode.getReservedNextDispatchBit(bit))).append("]").append(miniCode.move(miniCode.getReservedNextDispatchBit(bit), miniCode.getReservedMainLoopPosition()));
+        ret.append(miniCode.move(miniCode.getReservedMainLoopPosition(), 0)).append(createDispatchTree(0, 0)).append(miniCode.move(0, miniCode.getReservedMainLoopPosition())).append("]");
+        return ret.toString();
+    }
+    
+    //position before is 0 and has to be at the end 0 again
+    //if the bit is set, the segments prefix+(1<<remaining bits).. are tested, otherwise prefix.. (tmp main-loop is the else-flag)
+    private String createDispatchTree (int bit, int prefix) {
+        final MiniCode miniCode = codeCreation.miniCode;
+        if (bit == miniCode.numberOfDispatchBits)
+            return (prefix < offsetsSorted.size() ? createSegment(prefix) : "");
+        
+        final int bitPosition = miniCode.getReservedDispatchBit(bit), flagPosition = miniCode.getReservedMainLoopPosition()+2;
+        final int prefixBitSet = prefix | (1 << (miniCode.numberOfDispatchBits-1 - bit));
+        StringBuilder ret = new StringBuilder();
+        if (prefixBitSet >= offsetsSorted.size())
+            ret.append(miniCode.move(0, bitPosition)).append("[-]").append(miniCode.move(bitPosition, 0)).append(createDispatchTree(bit+1, prefix));
+        else {
+            ret.append(miniCode.move(0, flagPosition)).append("+").append(miniCode.move(flagPosition, bitPosition)).append("[-").append(miniCode.move(bitPosition, flagPosition)).append("-").append(miniCode.move(flagPosition, 0));
+            ret.append(createDispatchTree(bit+1, prefixBitSet));
+            ret.append(miniCode.move(0, bitPosition)).append("]").append(miniCode.move(bitPosition, flagPosition)).append("[-").append(miniCode.move(flagPosition, 0));
+            ret.append(createDispatchTree(bit+1, prefix));
+            ret.append(miniCode.move(0, flagPosition)).append("]").append(miniCode.move(flagPosition, 0));
+        }
+        return ret.toString();
+    }
+    
+    //position before is 0 and has to be at the end 0 again
+    private String createSegment (int segment) {
+        final int fromIncl = offsetsSorted.get(segment), toExcl = simplification.segmentEnds.get(segment);
+        final String ret = codeCreation.create(this, fromIncl, toExcl);
+        if (codeCreation.dispatchMode == DispatchMode.BinaryTree && segment == offsetsSorted.size()-1) {
+            final MiniCode miniCode = codeCreation.miniCode;
+            return ret + miniCode.move(0, miniCode.getReservedMainLoopPosition()) + "[-]" + miniCode.move(miniCode.getReservedMainLoopPosition(), 0);
+        }
+        return ret;
+    }
+    
+    //the main-loop position is decremented once per segment, the body of the segment is entered if it is 0
+    //(starts and ends on the main-loop position, ends inside the body on getReservedMainLoopPosition()+3)
+    public static String createSegmentTest (MiniCode miniCode) {
+        return miniCode.copyContent(miniCode.getReservedMainLoopPosition(), miniCode.getReservedMainLoopPosition(), miniCode.getReservedMainLoopPosition()+3, miniCode.getReservedMainLoopPosition()+2, miniCode.getReservedMainLoopPosition()) + ">>>+<[[-]>-<]>[-";
+    }
+    
 }
@@ -26,14 +26,26 @@ package assembler;
 import assembler.Parser.Arg;
 import assembler.Parser.ArgType;
 import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Macro {
     
+    //a macro is expanded at every command (inline) or emitted once as a routine, which is called by the commands (outline)
+    //auto outlines the commands outside of loops (if there are at least two of them) and expands the ones inside of loops
+    //native does not use the macro, the command is translated directly (see CodeCreation, just for div)
+    public static enum Expansion {Native, Inline, Outline, Auto};
+    
     public static final Macro divMacro = new Macro(new Parser("macros/div.asm"));
     
+    //the return-address of a call (see CodeCreation) has at most 2 bytes
+    public static final int maxReturnAddressSize = 2;
+    
     public final Parser macroCode;
     
     public Macro (Parser macroCode) {
@@ -89,6 +101,102 @@ public class Macro {
         return new Parser (mergedCommands, mergedLabelOffsets, parsed.numberOfRegisters+additionalReservedRegisters, parsed.lastNRegistersReserved+additionalReservedRegisters, parsed.globalMemory, parsed.stackSize);
     }
     
+    //the routine is appended behind the code (with a jump over it) and uses reserved registers for all of its registers
+    //every command at cmdIndices is replaced by moving its arguments to these registers, the call and moving the results back
+    //the stack grows by the return-address
+    public Parser outline (Parser parsed, Set <Integer> cmdIndices) {
+        final int reservedRegisters = Math.max(parsed.lastNRegistersReserved, macroCode.numberOfRegisters);
+        final int routineRegisterOffset = parsed.numberOfRegisters - parsed.lastNRegistersReserved;
+        final int routineLabel = parsed.labelOffsets.length, endLabel = parsed.labelOffsets.length+1;
+        
+        List <Cmd> commands = new ArrayList<>();
+        int [] newIndex = new int [parsed.commands.length+1];
+        for (int i=0; i<parsed.commands.length; i++) {
+            newIndex[i] = commands.size();
+            if (!cmdIndices.contains(i)) {
+                commands.add(parsed.commands[i]);
+                continue;
+            }
+            final Arg [] args = parsed.commands[i].args;
+            for (int j=0; j<args.length; j++)
+                if (args[j].argType != ArgType.Reg)
+                    throw new RuntimeException("invalid argument. (internal error)");
+                else if (isInput(j))
+                    commands.add(new Cmd(CmdType.Mov, new Arg [] {new Arg(ArgType.Reg, -1, routineRegisterOffset + macroCode.rawIndex2RegIndex.get(j), -1), args[j]}));
+            commands.add(new Cmd(CmdType.Call, new Arg [] {new Arg(ArgType.Label, -1, -1, routineLabel)}));
+            for (int j=0; j<args.length; j++)
+                if (isOutput(j))
+                    commands.add(new Cmd(CmdType.Mov, new Arg [] {args[j], new Arg(ArgType.Reg, -1, routineRegisterOffset + macroCode.rawIndex2RegIndex.get(j), -1)}));
+        }
+        newIndex[parsed.commands.length] = commands.size();
+        
+        commands.add(new Cmd(CmdType.Jmp, new Arg [] {new Arg(ArgType.Label, -1, -1, endLabel)}));
+        final int routineStart = commands.size();
+        for (int i=0; i<macroCode.commands.length; i++) {
+            Arg [] args = new Arg [macroCode.commands[i].args.length];
+            for (int j=0; j<args.length; j++) {
+                final Arg arg = macroCode.commands[i].args[j];
+                if (arg.argType == ArgType.Reg || arg.argType == ArgType.MemAddr)
+                    args[j] = new Arg(arg.argType, -1, routineRegisterOffset + arg.regIndex, -1);
+                else if (arg.argType == ArgType.Label)
+                    args[j] = new Arg(arg.argType, -1, -1, endLabel+1 + arg.labelIndex);
+                else
+                    args[j] = arg;
+            }
+            commands.add(new Cmd(macroCode.commands[i].cmdType, args));
+        }
+        commands.add(new Cmd(CmdType.Ret, new Arg [0]));
+        
+        int [] mergedLabelOffsets = new int [parsed.labelOffsets.length + 2 + macroCode.labelOffsets.length];
+        for (int i=0; i<parsed.labelOffsets.length; i++)
+            mergedLabelOffsets[i] = newIndex[parsed.labelOffsets[i]];
+        mergedLabelOffsets[routineLabel] = routineStart;
+        mergedLabelOffsets[endLabel] = commands.size();
+        for (int i=0; i<macroCode.labelOffsets.length; i++)
+            mergedLabelOffsets[endLabel+1 + i] = routineStart + macroCode.labelOffsets[i];
+        
+        return new Parser (commands.toArray(new Cmd [commands.size()]), mergedLabelOffsets, routineRegisterOffset+reservedRegisters, reservedRegisters, parsed.globalMemory, parsed.stackSize+maxReturnAddressSize);
+    }
+    
+    //the argument is read by the macro, unless the straight code at its start writes it before
+    private boolean isInput (int argIndex) {
+        final int regIndex = macroCode.rawIndex2RegIndex.get(argIndex);
+        for (Cmd command : macroCode.commands) {
+            boolean reads = false;
+            for (int j=0; j<command.args.length; j++)
+                reads |= (command.args[j].argType == ArgType.Reg || command.args[j].argType == ArgType.MemAddr) && command.args[j].regIndex == regIndex && !isWritten(command, j);
+            if (reads || command.isJumpInstruction())
+                return true;
+            if (command.args.length > 0 && command.args[0].argType == ArgType.Reg && command.args[0].regIndex == regIndex && (command.cmdType == CmdType.Mov || command.cmdType == CmdType.In || command.cmdType == CmdType.Pop || command.cmdType == CmdType.Mul))
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean isOutput (int argIndex) {
+        final int regIndex = macroCode.rawIndex2RegIndex.get(argIndex);
+        for (Cmd command : macroCode.commands)
+            for (int j=0; j<command.args.length; j++)
+                if (command.args[j].argType == ArgType.Reg && command.args[j].regIndex == regIndex && (isWritten(command, j) || ((command.cmdType == CmdType.Add || command.cmdType == CmdType.Sub) && j == 0)))
+                    return true;
+        return false;
+    }
+    
+    //just for the commands, which overwrite the argument without reading it
+    private static boolean isWritten (Cmd command, int argIndex) {
+        switch (command.cmdType) {
+            case Mov:
+            case In:
+            case Pop:
+            case Mul:
+                return argIndex == 0;
+            case Div:
+                return argIndex <= 1;
+            default:
+                return false;
+        }
+    }
+    
     private int getRegTranslation (Map <Integer, Integer> replaceRegIndices, int cmdIndex, int argIndex, AtomicInteger reservedRegisterOffset) {
         Integer ret = replaceRegIndices.get(macroCode.commands[cmdIndex].args[argIndex].regIndex);
         if (ret == null) {
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.MiniCode.MemoryModel;
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MemoryCursors {
+    
+    //finds structured loops, which access the memory just by reading with one address-register, that is only increased by constants:
+    //  label:
+    //      ..
+    //      mov $1, [$0]        (no other memory-access inside of the loop, push and pop are fine, the stack has its own region)
+    //      ..
+    //      add $0, 1           ($0 is not written otherwise, the stride is 1 to 127, add 255 or sub 1 decrease the address)
+    //      ..
+    //      jz/jnz/jmp ..       (the back-edge)
+    //a cursor (a trail of breadcrumbs to the byte at $0) is laid in front of such a loop, extended by the stride when $0 is increased
+    //(and laid again, when the address wraps around from 255 to 0)
+    //and removed behind the loop, a read follows the trail instead of walking the whole way with a counter (see MiniCode)
+    //the trail is laid in the flat memory, so there are no cursors with the wide memory-model
+    
+    public static final int maxStride = 127;
+    
+    public final Parser parsed;
+    public final Map <Integer, Integer> loopEnd2Register = new HashMap<>();
+    public final int numberOfLoops;
+    
+    public MemoryCursors (Parser parsed, StructuredLoops loops, MemoryModel memoryModel) {
+        this.parsed = parsed;
+        this.numberOfLoops = loops.loopEnd2Start.size();
+        if (memoryModel != MemoryModel.Flat)
+            return;
+        for (Map.Entry <Integer, Integer> loop : loops.loopEnd2Start.entrySet()) {
+            final int register = findCursorRegister(loop.getValue(), loop.getKey());
+            if (register != -1)
+                loopEnd2Register.put(loop.getKey(), register);
+        }
+    }
+    
+    //returns the amount the cursor is moved by the command or 0, if the command does not change the address-register
+    //this is the byte added to the address (sub $0, 1 adds 255)
+    public int getStride (Cmd command, int register) {
+        if (command.cmdType == CmdType.Add && command.args[0].regIndex == register && command.args[1].argType == ArgType.Const)
+            return command.args[1].constValue & 0xFF;
+        else if (command.cmdType == CmdType.Sub && command.args[0].regIndex == register && command.args[1].argType == ArgType.Const)
+            return -command.args[1].constValue & 0xFF;
+        return 0;
+    }
+    
+    public static boolean isCursorRead (Cmd command, int register) {
+        return command.cmdType == CmdType.Mov && command.args[1].argType == ArgType.MemAddr && command.args[1].regIndex == register;
+    }
+    
+    public void printStatistics () {
+        System.out.println("Memory cursors: " + loopEnd2Register.size() + "     (" + numberOfLoops + " structured loops)");
+    }
+    
+    //returns the address-register or -1, if the loop can not use a cursor
+    private int findCursorRegister (int fromIncl, int toIncl) {
+        int register = -1;
+        for (int i=fromIncl; i<=toIncl; i++) {
+            final Cmd command = parsed.commands[i];
+            for (int j=0; j<command.args.length; j++)
+                if (command.args[j].argType == ArgType.MemAddr || command.args[j].argType == ArgType.MemAddrWide || command.args[j].argType == ArgType.MemAddrConst) {
+                    if (j != 1 || command.cmdType != CmdType.Mov || command.args[1].argType != ArgType.MemAddr || (register != -1 && command.args[1].regIndex != register))
+                        return -1;
+                    register = command.args[1].regIndex;
+                }
+        }
+        if (register == -1)
+            return -1;
+        
+        //every other write (like the remainder of div) would leave the cursor behind
+        for (int i=fromIncl; i<=toIncl; i++) {
+            final Cmd command = parsed.commands[i];
+            BitSet use = new BitSet(), def = new BitSet();
+            RegisterAllocation.findUsesAndDefs(command, use, def);
+            if (def.get(register) && (command.cmdType != CmdType.Add && command.cmdType != CmdType.Sub || command.args[1].argType != ArgType.Const || getStride(command, register) <= 0 || getStride(command, register) > maxStride))
+                return -1;
+        }
+        return register;
+    }
+    
+}
@@ -25,28 +25,111 @@ package assembler;
 
 public class MiniCode {
     
-    //global positions are: [registers], [src main-loop], [dst main-loop], [tmp main-loop], [tmp main-loop2], [stack-ptr], [tmp reserved 0-3], [tmp reserved 4 (0 for memlookup)] [reserved mem-lookup]
+    //global positions are: [stack], [registers], [src main-loop], [dst main-loop], [tmp main-loop], [tmp main-loop2], [dispatch-bits], [next dispatch-bits], [tmp reserved 0-3], [tmp reserved 4 (0 for memlookup)] [reserved mem-lookup]
+    //the dispatch-bits are just used by the binary tree dispatch of ControlFlowSegments
+    //with the interleaved layout [registers] is [register 0], [scratch 0], [register 1], [scratch 1], ...
+    //a scratch-cell is 0 between instructions and is used as tmp when its register is copied, so the copy does not have to walk to the reserved cells
+    //[stack] is [floor (0)], [weight], [tmp], then for every entry [marker], [byte], [tmp] and at last [marker (0)], [weight], [tmp]
+    //the markers of the pushed entries are 1, so the top of the stack is found by scanning the markers (there is no stack-pointer)
+    //the stack is in front of the registers (the floor is the first cell of the tape), so it does not lengthen the ways to the reserved cells
+    //behind the mem-lookup are the bytes of the memory (3 cells per byte: [byte], [breadcrumb], [counter])
+    //with the wide memory-model the bytes are in slots instead (see getWideMemoryStart)
+    
+    public static enum RegisterLayout {Compact, Interleaved};
+    public static enum MemoryModel {Flat, Wide};
+    
+    //a slot of the wide memory: [byte], [breadcrumb], [page-breadcrumb], [address low], [address high], [payload], [tmp]
+    private static final int wideBreadcrumb = 1, widePageBreadcrumb = 2, wideLow = 3, wideHigh = 4, widePayload = 5, wideTmp = 6;
+    public static final int wideSlotSize = 7, widePageSize = 256*wideSlotSize;
+    
+    //constant addresses of the wide memory further away are looked up (instead of moving the pointer directly to the byte)
+    public static final int maxDirectWideDistance = 2048;
     
     public final int numberOfRegisters;
+    public final int numberOfDispatchBits;
+    public final RegisterLayout registerLayout;
+    public final MemoryModel memoryModel;
+    public final int stackSize;
     
     public MiniCode (int numberOfRegisters) {
+        this(numberOfRegisters, 0);
+    }
+    
+    public MiniCode (int numberOfRegisters, int numberOfDispatchBits) {
+        this(numberOfRegisters, numberOfDispatchBits, RegisterLayout.Compact);
+    }
+    
+    public MiniCode (int numberOfRegisters, int numberOfDispatchBits, RegisterLayout registerLayout) {
+        this(numberOfRegisters, numberOfDispatchBits, registerLayout, MemoryModel.Flat, 0);
+    }
+    
+    public MiniCode (int numberOfRegisters, int numberOfDispatchBits, RegisterLayout registerLayout, MemoryModel memoryModel, int stackSize) {
         this.numberOfRegisters = numberOfRegisters;
+        this.numberOfDispatchBits = numberOfDispatchBits;
+        this.registerLayout = registerLayout;
+        this.memoryModel = memoryModel;
+        this.stackSize = stackSize;
+    }
+    
+    public int getRegisterAreaSize () {
+        return (registerLayout == RegisterLayout.Interleaved ? 2*numberOfRegisters : numberOfRegisters);
+    }
+    
+    public int getRegisterPosition (int regIndex) {
+        return (registerLayout == RegisterLayout.Interleaved ? 2*regIndex : regIndex);
+    }
+    
+    //the cell used as tmp when the register at registerPosition is copied, tmpPosition if there is no scratch-cell
+    public int getScratchPosition (int registerPosition, int tmpPosition) {
+        return (registerLayout == RegisterLayout.Interleaved && registerPosition < getRegisterAreaSize() ? registerPosition+1 : tmpPosition);
     }
     
     public int getReservedMainLoopPosition () {
-        return numberOfRegisters+0;
+        return getRegisterAreaSize()+0;
+    }
+    
+    public int getReservedDispatchBit (int bit) {
+        return getRegisterAreaSize()+4+bit;
+    }
+    
+    public int getReservedNextDispatchBit (int bit) {
+        return getRegisterAreaSize()+4+numberOfDispatchBits+bit;
     }
     
-    public int getReservedStackPtr () {
-        return numberOfRegisters+4;
+    //the floor of the stack, the scans back to it stop there (the last marker of the stack is at -3)
+    public int getReservedStackFloor () {
+        return -6-3*stackSize;
     }
     
     public int getReservedTmpReserved () {
-        return numberOfRegisters+5;
+        return getRegisterAreaSize()+4+2*numberOfDispatchBits;
     }
     
     public int getReservedMemLookupPosition () {
-        return numberOfRegisters+10;
+        return getReservedTmpReserved()+5;
+    }
+    
+    public int getMemoryPosition (int memAddr) {
+        return getReservedMemLookupPosition()+1 + 3*memAddr;
+    }
+    
+    //the first slot of the wide memory (address 0)
+    public int getWideMemoryStart () {
+        return getMemoryPosition(0);
+    }
+    
+    //position of the byte at an address used by the program
+    public int getDataPosition (int dataAddr) {
+        return (memoryModel == MemoryModel.Wide ? getWideMemoryStart() + wideSlotSize*dataAddr : getMemoryPosition(dataAddr));
+    }
+    
+    //the position after an access with a constant address
+    public int getConstantMemAddrPosition (int dataAddr) {
+        return (isDirectlyAddressable(dataAddr) ? getDataPosition(dataAddr) : getWideMemoryStart());
+    }
+    
+    private boolean isDirectlyAddressable (int dataAddr) {
+        return memoryModel == MemoryModel.Flat || wideSlotSize*dataAddr <= maxDirectWideDistance;
     }
     
     public String move (int positionSrc, int positionDst) {
@@ -76,6 +159,12 @@ public class MiniCode {
         return ret.toString();
     }
     
+    //adds the constant with the shortest code (see ConstantSynthesis), starts and ends on the target-cell
+    //the cell at target+scratchOffset has to be 0 and is 0 again after this instruction
+    public String constantAdd (int addConstant, int scratchOffset) {
+        return ConstantSynthesis.constantAdd(addConstant, scratchOffset);
+    }
+    
     //if the zeroCell is not zero, the value is added to it
     public String moveContentToZeroCell (int currentPosition, int srcPosition, int zeroCellPosition, int dstPosition) {
         return move(currentPosition, srcPosition) + "[-" + move(srcPosition, zeroCellPosition) + "+" + move(zeroCellPosition, srcPosition) + "]" + move(srcPosition, dstPosition);
@@ -86,14 +175,35 @@ public class MiniCode {
         return move(currentPosition, srcPosition) + "[-" + move(srcPosition, tmpPosition) + "+" + move(tmpPosition, copyToPosition) + "+" + move(copyToPosition, srcPosition) + "]" + move(srcPosition, tmpPosition) + "[-" + move(tmpPosition, srcPosition) + "+" + move(srcPosition, tmpPosition) + "]" + move(tmpPosition, dstPosition);
     }
     
+    //registerPositionQuotient = registerPositionDividend / registerPositionDivisor, registerPositionRemainder = .. % ..
+    //both results are 0 if the divisor is 0 (like the div-macro), the registers of the results are written after the others are read
+    //the cells are [dividend], [countdown], [flag], [zero], [remainder], [quotient] (tmp reserved 0-4 and the mem-lookup, which is 0 here)
+    //for every unit of the dividend the countdown (from the divisor) is decremented and the remainder incremented,
+    //when the countdown reaches 0, the remainder is moved back to the countdown and the quotient is incremented
+    public String divMod (int currentPosition, int registerPositionDividend, int registerPositionDivisor, int registerPositionQuotient, int registerPositionRemainder, int dstPosition) {
+        final int dividend = getReservedTmpReserved(), countdown = dividend+1, flag = dividend+2, zero = dividend+3, remainder = dividend+4, quotient = dividend+5;
+        StringBuilder ret = new StringBuilder();
+        ret.append(copyContent(currentPosition, registerPositionDivisor, getScratchPosition(registerPositionDivisor, flag), countdown, countdown));
+        ret.append(copyContent(countdown, countdown, flag, zero, zero)).append("[[-]").append(copyContent(zero, registerPositionDividend, getScratchPosition(registerPositionDividend, flag), dividend, zero)).append("]");
+        ret.append(move(zero, registerPositionQuotient)).append("[-]").append(move(registerPositionQuotient, registerPositionRemainder)).append("[-]").append(move(registerPositionRemainder, dividend));
+        
+        //the flag is set and the idiom "[>-]>[< .. >->]<<" executes its body on the countdown, if it is 0
+        ret.append("[-").append(move(dividend, countdown)).append("-").append(move(countdown, remainder)).append("+").append(move(remainder, flag)).append("+").append(move(flag, countdown));
+        ret.append("[>-]>[<").append(moveContentToZeroCell(countdown, remainder, countdown, quotient)).append("+").append(move(quotient, countdown)).append(">->]<<");
+        ret.append(move(countdown, dividend)).append("]");
+        
+        ret.append(moveContentToZeroCell(dividend, quotient, registerPositionQuotient, remainder)).append(moveContentToZeroCell(remainder, remainder, registerPositionRemainder, countdown)).append("[-]").append(move(countdown, dstPosition));
+        return ret.toString();
+    }
+    
     //mem-addr is in getReservedMemLookupPosition(), result is written in tmpReserved+0 (has to be 0 before)
     public String moveFromMemAddr (int currentPosition, int dstPosition) {
-        return move(currentPosition, getReservedMemLookupPosition()) + "+[-[->>+>+<<<]>>>]<<[-<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "+" + move(getReservedTmpReserved(), getReservedMemLookupPosition()) + "+[-[->>+>+<<<]>>>]<<]<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), dstPosition);
+        return move(currentPosition, getReservedMemLookupPosition()) + "[[->>+>+<<<]>>>-]>[-<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "+" + move(getReservedTmpReserved(), getReservedMemLookupPosition()) + "[[->>+>+<<<]>>>-]>]<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), dstPosition);
     }
     
     //mem-addr is in getReservedMemLookupPosition(), result is read from tmpReserved+0, then written to memory-cell (will be overwritten)
     public String moveToMemAddr (int currentPosition, int dstPosition) {
-        return move(currentPosition, getReservedMemLookupPosition()) + "+[-[->>+>+<<<]>>>]<<[-]<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "[-" + move(getReservedTmpReserved(), getReservedMemLookupPosition()) + "+[-[->>+>+<<<]>>>]<<+<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "]" + move(getReservedTmpReserved(), dstPosition);
+        return move(currentPosition, getReservedMemLookupPosition()) + "[[->>+>+<<<]>>>-]>[-]<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "[-" + move(getReservedTmpReserved(), getReservedMemLookupPosition()) + "[[->>+>+<<<]>>>-]>+<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + move(getReservedMemLookupPosition(), getReservedTmpReserved()) + "]" + move(getReservedTmpReserved(), dstPosition);
     }
     
     public String copyFromMemAddr (int currentPosition, int registerPositionReadMemAddr, int registerPositionWrite, int dstPosition) {
@@ -105,19 +215,180 @@ public class MiniCode {
     }
     
     public String constantToMemAddr (int currentPosition, int registerPositionWriteMemAddr, int constantValue, int dstPosition) {
-        return moveContentToZeroCell(currentPosition, registerPositionWriteMemAddr, getReservedMemLookupPosition(), getReservedMemLookupPosition()) + "+[-[->>+>+<<<]>>>]<<[-]" + constantAdd(constantValue) + "<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + moveContentToZeroCell(getReservedMemLookupPosition(), getReservedMemLookupPosition(), registerPositionWriteMemAddr, dstPosition);
+        return moveContentToZeroCell(currentPosition, registerPositionWriteMemAddr, getReservedMemLookupPosition(), getReservedMemLookupPosition()) + "[[->>+>+<<<]>>>-]>[-]" + constantAdd(constantValue, 1) + "<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<" + moveContentToZeroCell(getReservedMemLookupPosition(), getReservedMemLookupPosition(), registerPositionWriteMemAddr, dstPosition);
+    }
+    
+    //a cursor is a trail of breadcrumbs (1 in the cell behind every byte) from the lookup-cell to the byte at an address, see MemoryCursors
+    //the cursor-code starts and ends on the cell in front of the lookup-cell (tmp reserved 4), which stops the way back
+    //laying the trail costs O(address^2) like a memory-lookup, following it just O(address)
+    public String createMemoryCursor (int currentPosition, int registerPositionMemAddr, int dstPosition) {
+        return copyContent(currentPosition, registerPositionMemAddr, getScratchPosition(registerPositionMemAddr, getReservedTmpReserved()), getReservedMemLookupPosition(), getReservedMemLookupPosition()) + "[-[->>>+<<<]>>+>]<[<<<]" + move(getReservedMemLookupPosition()-1, dstPosition);
     }
     
+    //the address wraps around, if the trail reaches the byte 255 (its breadcrumb is set), then the trail is laid again
+    //the register contains the new address already, which is below the stride then (so the breadcrumb is 0 again)
+    public String moveMemoryCursor (int currentPosition, int stride, int registerPositionMemAddr, int dstPosition) {
+        final int lastBreadcrumb = getMemoryPosition(255)+1;
+        StringBuilder ret = new StringBuilder();
+        ret.append(move(currentPosition, getReservedMemLookupPosition()-1)).append(">>>[>>>]");
+        for (int i=0; i<stride; i++)
+            ret.append("+>>>");
+        ret.append("<<<[<<<]").append(move(getReservedMemLookupPosition()-1, lastBreadcrumb));
+        ret.append("[").append(removeMemoryCursor(lastBreadcrumb, getReservedMemLookupPosition()-1)).append(createMemoryCursor(getReservedMemLookupPosition()-1, registerPositionMemAddr, lastBreadcrumb)).append("]");
+        return ret.append(move(lastBreadcrumb, dstPosition)).toString();
+    }
+    
+    //the cell behind the cell behind the byte (the counter of the memory-lookups) is 0 and used as tmp
+    public String copyFromMemoryCursor (int currentPosition, int registerPositionWrite, int dstPosition) {
+        final String toByte = ">>>[>>>]<", fromByte = "<<[<<<]";
+        return move(currentPosition, registerPositionWrite) + "[-]" + move(registerPositionWrite, getReservedMemLookupPosition()-1) + toByte + "[->>+<<" + fromByte + move(getReservedMemLookupPosition()-1, registerPositionWrite) + "+" + move(registerPositionWrite, getReservedMemLookupPosition()-1) + toByte + "]>>[-<<+>>]<<" + fromByte + move(getReservedMemLookupPosition()-1, dstPosition);
+    }
+    
+    public String removeMemoryCursor (int currentPosition, int dstPosition) {
+        return move(currentPosition, getReservedMemLookupPosition()-1) + ">>>[>>>]<<<[-<<<]" + move(getReservedMemLookupPosition()-1, dstPosition);
+    }
+    
+    //the stack-operations find the top by scanning the markers ([>>>] from the floor, [<<<] back), the cells below the top are not changed
+    //the byte is sent bit by bit: one side halves it, every set bit adds the weight (1, 2, 4, ..) on the other side, which is doubled
+    //so push and pop cost at most 8 round trips (scans) plus O(value) at the top, instead of carrying the value through every entry
+    //the weight of a push is in the cell behind the marker above the top, the weight of a pop is behind the floor
+    private static final String toStackTop = ">>>[>>>]<<<", toStackFloor = "[<<<]";
+    
+    public String copyToStack (int currentPosition, int registerPositionRead, int dstPosition) {
+        final int floor = getReservedStackFloor(), value = getReservedTmpReserved(), bit = value+1;
+        StringBuilder ret = new StringBuilder(copyContent(currentPosition, registerPositionRead, getScratchPosition(registerPositionRead, bit), value, floor));
+        ret.append(">>>[>>>]+>>>>+<<<<").append(toStackFloor).append(move(floor, value)).append("[").append(halve(value, bit, value+2, value+3));
+        ret.append(move(value, bit)).append("[-").append(move(bit, floor)).append(toStackTop).append(">>>>[-<<<+>>>>+<]>[-<+>]<<<<<").append(toStackFloor).append(move(floor, bit)).append("]");
+        ret.append(move(bit, floor)).append(toStackTop).append(">>>>[->++<]>[-<+>]<<<<<").append(toStackFloor).append(move(floor, value)).append("]");
+        return ret.append(move(value, floor)).append(toStackTop).append(">>>>[-]<<<<").append(toStackFloor).append(move(floor, dstPosition)).toString();
+    }
+    
+    public String constantToStack (int currentPosition, int constantValue, int dstPosition) {
+        return move(currentPosition, getReservedStackFloor()) + ">>>[>>>]+>" + constantAdd(constantValue, 1) + "<" + toStackFloor + move(getReservedStackFloor(), dstPosition);
+    }
+    
+    //the byte of the top is halved in place (with the tmp of the top and the cells above it)
+    public String moveFromStack (int currentPosition, int registerPositionWrite, int dstPosition) {
+        final int floor = getReservedStackFloor();
+        StringBuilder ret = new StringBuilder(move(currentPosition, registerPositionWrite)).append("[-]").append(move(registerPositionWrite, floor+1)).append("+");
+        ret.append(move(floor+1, floor)).append(toStackTop).append(">[").append(halve(1, 2, 4, 5));
+        ret.append(">[-<<").append(toStackFloor).append(move(floor, floor+1)).append("[-").append(move(floor+1, registerPositionWrite)).append("+").append(move(registerPositionWrite, floor+2)).append("+").append(move(floor+2, floor+1)).append("]>[-<+>]").append(move(floor+2, floor)).append(toStackTop).append(">>]");
+        ret.append("<<").append(toStackFloor).append(">[->++<]>[-<+>]<<").append(toStackTop).append(">]");
+        return ret.append("<-<<<").append(toStackFloor).append(">[-]").append(move(floor+1, dstPosition)).toString();
+    }
+    
+    //value becomes the half of it and bit the lowest bit (tmp is toggled with bit), starts and ends on value
+    private String halve (int value, int bit, int tmp, int half) {
+        return "[-" + move(value, bit) + "[-" + move(bit, tmp) + "+" + move(tmp, bit) + "]+" + move(bit, tmp) + "[-" + move(tmp, bit) + "-" + move(bit, half) + "+" + move(half, tmp) + "]" + move(tmp, value) + "]" + move(value, half) + "[-" + move(half, value) + "+" + move(value, half) + "]" + move(half, value);
+    }
+    
+    //the constant memory-addresses are known while compiling, the pointer moves directly to the byte (no memory-lookup)
+    //the cell behind the byte is 0 and is used as tmp
     public String copyFromMemAddrConst (int currentPosition, int constantMemAddr, int registerPositionWrite, int dstPosition) {
-        return move(currentPosition, getReservedMemLookupPosition()) + constantAdd(constantMemAddr) + moveFromMemAddr(getReservedMemLookupPosition(), getReservedMemLookupPosition()) + copyContent(getReservedMemLookupPosition(), getReservedTmpReserved(), getReservedTmpReserved()+1, registerPositionWrite, getReservedMemLookupPosition()) + moveToMemAddr(getReservedMemLookupPosition(), getReservedMemLookupPosition()) + "[-]" + move(getReservedMemLookupPosition(), dstPosition);
+        if (!isDirectlyAddressable(constantMemAddr))
+            return copyFromWideMemAddr(currentPosition, -1, -1, constantMemAddr, registerPositionWrite, dstPosition);
+        final int memoryPosition = getDataPosition(constantMemAddr);
+        return move(currentPosition, registerPositionWrite) + "[-]" + copyContent(registerPositionWrite, memoryPosition, memoryPosition+1, registerPositionWrite, dstPosition);
     }
     
     public String copyToMemAddrConst (int currentPosition, int constantMemAddr, int registerPositionRead, int dstPosition) {
-        return move(currentPosition, getReservedMemLookupPosition()) + constantAdd(constantMemAddr) + copyContent(getReservedMemLookupPosition(), registerPositionRead, getReservedTmpReserved()+1, getReservedTmpReserved(), getReservedMemLookupPosition()) + moveToMemAddr(getReservedMemLookupPosition(), getReservedMemLookupPosition()) + "[-]" + move(getReservedMemLookupPosition(), dstPosition);
+        if (!isDirectlyAddressable(constantMemAddr))
+            return copyToWideMemAddr(currentPosition, -1, -1, constantMemAddr, registerPositionRead, dstPosition);
+        final int memoryPosition = getDataPosition(constantMemAddr);
+        return move(currentPosition, memoryPosition) + "[-]" + copyContent(memoryPosition, registerPositionRead, getScratchPosition(registerPositionRead, getReservedTmpReserved()), memoryPosition, dstPosition);
     }
     
     public String constantToMemAddrConst (int currentPosition, int constantMemAddr, int constantValue, int dstPosition) {
-        return move(currentPosition, getReservedMemLookupPosition()) + constantAdd(constantMemAddr) + "+[-[->>+>+<<<]>>>]<<[-]" + constantAdd(constantValue) + "<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]<<[-]" + move(getReservedMemLookupPosition(), dstPosition);
+        if (!isDirectlyAddressable(constantMemAddr))
+            return constantToWideMemAddr(currentPosition, -1, -1, constantMemAddr, constantValue, dstPosition);
+        final int memoryPosition = getDataPosition(constantMemAddr);
+        return move(currentPosition, memoryPosition) + "[-]" + constantAdd(constantValue, 1) + move(memoryPosition, dstPosition);
+    }
+    
+    //the wide memory is addressed by the registers at registerPositionLow and registerPositionHigh (-1 for 0), or by the constantMemAddr (if registerPositionLow is -1)
+    //the address is copied into slot 0, a walk skips whole pages (256 slots) with the high byte and then single slots with the low byte,
+    //the address (and the payload) is moved along, every step leaves a breadcrumb (page-breadcrumb), the way back follows them
+    //so an access takes high byte + low byte steps instead of one step per address, but a page-step carries the cells
+    //unit by unit across a whole page (1792 cells), which is just cheap for interpreters folding such moves
+    //the code of the page-steps is only created, if the high byte can be non-zero (it is large)
+    //all cells of the slots except of the bytes are 0 between instructions
+    public String copyFromWideMemAddr (int currentPosition, int registerPositionLow, int registerPositionHigh, int constantMemAddr, int registerPositionWrite, int dstPosition) {
+        final int start = getWideMemoryStart();
+        final boolean pages = hasWidePages(registerPositionLow, registerPositionHigh, constantMemAddr);
+        return setWideAddress(currentPosition, registerPositionLow, registerPositionHigh, constantMemAddr) + walkWideOut(false, pages)
+                + move(wideTmp, 0) + "[-" + move(0, widePayload) + "+" + move(widePayload, wideTmp) + "+" + move(wideTmp, 0) + "]" + move(0, wideTmp) + "[-" + move(wideTmp, 0) + "+" + move(0, wideTmp) + "]"
+                + walkWideBack(true, pages) + move(start, registerPositionWrite) + "[-]" + moveContentToZeroCell(registerPositionWrite, start+widePayload, registerPositionWrite, dstPosition);
+    }
+    
+    public String copyToWideMemAddr (int currentPosition, int registerPositionLow, int registerPositionHigh, int constantMemAddr, int registerPositionRead, int dstPosition) {
+        final int start = getWideMemoryStart();
+        final boolean pages = hasWidePages(registerPositionLow, registerPositionHigh, constantMemAddr);
+        return setWideAddress(currentPosition, registerPositionLow, registerPositionHigh, constantMemAddr) + copyContent(start, registerPositionRead, getScratchPosition(registerPositionRead, getReservedTmpReserved()), start+widePayload, start) + walkWideOut(true, pages)
+                + move(wideTmp, 0) + "[-]" + move(0, widePayload) + "[-" + move(widePayload, 0) + "+" + move(0, widePayload) + "]" + move(widePayload, wideTmp)
+                + walkWideBack(false, pages) + move(start, dstPosition);
+    }
+    
+    public String constantToWideMemAddr (int currentPosition, int registerPositionLow, int registerPositionHigh, int constantMemAddr, int constantValue, int dstPosition) {
+        final int start = getWideMemoryStart();
+        final boolean pages = hasWidePages(registerPositionLow, registerPositionHigh, constantMemAddr);
+        return setWideAddress(currentPosition, registerPositionLow, registerPositionHigh, constantMemAddr) + walkWideOut(false, pages)
+                + move(wideTmp, 0) + "[-]" + constantAdd(constantValue, wideTmp) + move(0, wideTmp)
+                + walkWideBack(false, pages) + move(start, dstPosition);
+    }
+    
+    //false, if the high byte of the address is always 0 (no register for it or a constant address below 256)
+    private boolean hasWidePages (int registerPositionLow, int registerPositionHigh, int constantMemAddr) {
+        return (registerPositionLow == -1 ? (constantMemAddr >> 8) != 0 : registerPositionHigh != -1);
+    }
+    
+    //ends on slot 0
+    private String setWideAddress (int currentPosition, int registerPositionLow, int registerPositionHigh, int constantMemAddr) {
+        final int start = getWideMemoryStart();
+        if (registerPositionLow == -1)
+            return move(currentPosition, start+wideLow) + constantAdd(constantMemAddr & 0xFF, wideTmp-wideLow) + move(start+wideLow, start+wideHigh) + constantAdd((constantMemAddr >> 8) & 0xFF, wideTmp-wideHigh) + move(start+wideHigh, start);
+        String ret = copyContent(currentPosition, registerPositionLow, getScratchPosition(registerPositionLow, getReservedTmpReserved()), start+wideLow, start);
+        if (registerPositionHigh != -1)
+            ret += copyContent(start, registerPositionHigh, getScratchPosition(registerPositionHigh, getReservedTmpReserved()), start+wideHigh, start);
+        return ret;
+    }
+    
+    //the positions are relative to the slot: starts on slot 0, ends on the tmp of the slot of the address
+    private String walkWideOut (boolean carryPayload, boolean pages) {
+        StringBuilder ret = new StringBuilder();
+        if (pages) {
+            ret.append(move(0, wideHigh)).append("[-");
+            for (int cell=wideLow; cell<=(carryPayload ? widePayload : wideHigh); cell++)
+                ret.append(move(wideHigh, cell)).append(moveBy(cell, widePageSize)).append(move(cell, wideHigh));
+            ret.append(move(wideHigh, widePageBreadcrumb+widePageSize)).append("+").append(move(widePageBreadcrumb+widePageSize, wideHigh+widePageSize)).append("]").append(move(wideHigh, 0));
+        }
+        
+        ret.append(move(0, wideLow)).append("[-").append(moveBy(wideLow, wideSlotSize));
+        if (carryPayload)
+            ret.append(move(wideLow, widePayload)).append(moveBy(widePayload, wideSlotSize)).append(move(widePayload, wideLow));
+        ret.append(move(wideLow, wideBreadcrumb+wideSlotSize)).append("+").append(move(wideBreadcrumb+wideSlotSize, wideLow+wideSlotSize)).append("]");
+        return ret.append(move(wideLow, wideTmp)).toString();
+    }
+    
+    //starts on the tmp of the slot of the address, ends on slot 0
+    private String walkWideBack (boolean carryPayload, boolean pages) {
+        StringBuilder ret = new StringBuilder();
+        ret.append(move(wideTmp, wideBreadcrumb)).append("[-");
+        if (carryPayload)
+            ret.append(move(wideBreadcrumb, widePayload)).append(moveBy(widePayload, -wideSlotSize)).append(move(widePayload, wideBreadcrumb));
+        ret.append(move(wideBreadcrumb, wideBreadcrumb-wideSlotSize)).append("]").append(move(wideBreadcrumb, 0));
+        
+        if (pages) {
+            ret.append(move(0, widePageBreadcrumb)).append("[-");
+            if (carryPayload)
+                ret.append(move(widePageBreadcrumb, widePayload)).append(moveBy(widePayload, -widePageSize)).append(move(widePayload, widePageBreadcrumb));
+            ret.append(move(widePageBreadcrumb, widePageBreadcrumb-widePageSize)).append("]").append(move(widePageBreadcrumb, 0));
+        }
+        return ret.toString();
+    }
+    
+    //adds the content of the cell to the cell distance away (the cell is 0 afterwards), starts and ends on the cell
+    private String moveBy (int position, int distance) {
+        return "[-" + move(position, position+distance) + "+" + move(position+distance, position) + "]";
     }
     
 }
@@ -37,7 +37,7 @@ import utils.Utils;
 public class Parser {
     
     public enum CmdType {Mov, Add, Sub, Mul, Div, Jmp, Jnz, Jz, Jne, Je, Jle, Jl, Jge, Jg, Out, In, Push, Pop, Call, Ret};
-    public enum ArgType {Reg, Const, MemAddr, MemAddrConst, Label};
+    public enum ArgType {Reg, Const, MemAddr, MemAddrWide, MemAddrConst, Label};
     
     public final Cmd [] commands;
     public final int [] labelOffsets;
@@ -244,7 +244,9 @@ public class Parser {
             
             Set <Integer> regIndicesUsed = new HashSet<>();
             for (int i=0; i<args.length; i++)
-                if ((args[i].argType == ArgType.Reg || args[i].argType == ArgType.MemAddr) && !regIndicesUsed.add(args[i].regIndex))
+                if ((args[i].argType == ArgType.Reg || args[i].argType == ArgType.MemAddr || args[i].argType == ArgType.MemAddrWide) && !regIndicesUsed.add(args[i].regIndex))
+                    error("multiple use of the same register in one instruction.", line, lineNumber);
+                else if (args[i].argType == ArgType.MemAddrWide && !regIndicesUsed.add(args[i].regIndexHigh))
                     error("multiple use of the same register in one instruction.", line, lineNumber);
         }
         
@@ -255,7 +257,7 @@ public class Parser {
         private boolean isValid () {
             switch (cmdType) {
                 case Mov:
-                    return (args[0].argType == ArgType.Reg ? (args[1].argType != ArgType.Label) : (args[0].argType == ArgType.MemAddr || args[0].argType == ArgType.MemAddrConst ? (args[1].argType != ArgType.Label && args[1].argType != ArgType.MemAddr && args[1].argType != ArgType.MemAddrConst) : false));
+                    return (args[0].argType == ArgType.Reg ? (args[1].argType != ArgType.Label) : (args[0].argType == ArgType.MemAddr || args[0].argType == ArgType.MemAddrWide || args[0].argType == ArgType.MemAddrConst ? (args[1].argType == ArgType.Reg || args[1].argType == ArgType.Const) : false));
                 case Add:
                 case Sub:
                     return (args[0].argType == ArgType.Reg && (args[1].argType == ArgType.Reg || args[1].argType == ArgType.Const));
@@ -360,12 +362,17 @@ public class Parser {
     public static class Arg {
         
         public final ArgType argType;
-        public final int constValue, regIndex, labelIndex;
+        public final int constValue, regIndex, regIndexHigh, labelIndex;    //regIndexHigh is just used by [$high:$low] (regIndex is the low byte)
 
         public Arg(ArgType argType, int constValue, int regIndex, int labelIndex) {
+            this(argType, constValue, regIndex, -1, labelIndex);
+        }
+        
+        public Arg(ArgType argType, int constValue, int regIndex, int regIndexHigh, int labelIndex) {
             this.argType = argType;
             this.constValue = constValue;
             this.regIndex = regIndex;
+            this.regIndexHigh = regIndexHigh;
             this.labelIndex = labelIndex;
         }
         
@@ -379,18 +386,32 @@ public class Parser {
                 argType = ArgType.Reg;
                 constValue = -1;
                 regIndex = doRegIndexTranslation(index, regIndexTranslation, regIndex2RawIndex);
+                regIndexHigh = -1;
                 labelIndex = -1;
             } else if (rawArg.charAt(0) == '[') {
                 if (rawArg.length() < 3 || rawArg.charAt(rawArg.length()-1) != ']')
                     error("invalid [$..] format.", line, lineNumber);
                 
-                if (rawArg.charAt(1) == '$') {
+                if (rawArg.charAt(1) == '$' && rawArg.indexOf(':') != -1) {
+                    //[$high:$low], a 16 bit address (wide memory-model)
+                    final String [] parts = rawArg.substring(1, rawArg.length()-1).split(":");
+                    Integer indexHigh = (parts.length == 2 && parts[0].trim().startsWith("$") ? parseInt(parts[0].trim().substring(1)) : null);
+                    Integer index = (parts.length == 2 && parts[1].trim().startsWith("$") ? parseInt(parts[1].trim().substring(1)) : null);
+                    if (index == null || index < 0 || indexHigh == null || indexHigh < 0)
+                        error("could not parse index of register.", line, lineNumber);
+                    argType = ArgType.MemAddrWide;
+                    constValue = -1;
+                    regIndexHigh = doRegIndexTranslation(indexHigh, regIndexTranslation, regIndex2RawIndex);
+                    regIndex = doRegIndexTranslation(index, regIndexTranslation, regIndex2RawIndex);
+                    labelIndex = -1;
+                } else if (rawArg.charAt(1) == '$') {
                     Integer index = parseInt(rawArg.substring(2, rawArg.length()-1));
                     if (index == null || index < 0)
                         error("could not parse index of register.", line, lineNumber);
                     argType = ArgType.MemAddr;
                     constValue = -1;
                     regIndex = doRegIndexTranslation(index, regIndexTranslation, regIndex2RawIndex);
+                    regIndexHigh = -1;
                     labelIndex = -1;
                 } else {
                     Integer index = parseInt(rawArg.substring(1, rawArg.length()-1));
@@ -399,6 +420,7 @@ public class Parser {
                     argType = ArgType.MemAddrConst;
                     constValue = index;
                     regIndex = -1;
+                    regIndexHigh = -1;
                     labelIndex = -1;
                 }
             } else if (rawArg.charAt(0) >= '0' && rawArg.charAt(0) <= '9') {
@@ -408,6 +430,7 @@ public class Parser {
                 argType = ArgType.Const;
                 constValue = constant;
                 regIndex = -1;
+                regIndexHigh = -1;
                 labelIndex = -1;
             } else {
                 for (int j=0; j<rawArg.length(); j++)
@@ -418,6 +441,7 @@ public class Parser {
                 argType = ArgType.Label;
                 constValue = -1;
                 regIndex = -1;
+                regIndexHigh = -1;
                 labelIndex = label2Index.get(rawArg);
             }
         }
@@ -431,6 +455,8 @@ public class Parser {
                     return "" + constValue;
                 case MemAddr:
                     return "[$" + regIndex + "]";
+                case MemAddrWide:
+                    return "[$" + regIndexHigh + ":$" + regIndex + "]";
                 case MemAddrConst:
                     return "[" + constValue + "]";
                 case Label:
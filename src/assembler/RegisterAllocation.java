@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.Parser.Arg;
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class RegisterAllocation {
+    
+    //registers, which are never live at the same time, share one cell (liveness over all jumps, a ret continues behind every call)
+    //the cells are ordered by the number of accesses (weighted by the loop depth), the most used cell is next to the reserved cells
+    
+    public static final int loopWeight = 8, maxLoopDepth = 5;
+    
+    public final Parser parsed;
+    public final int numberOfRegistersBefore;
+    public final int [] regIndex2Cell;
+    
+    private final Parser input;
+    private final BitSet [] uses, defs;
+    
+    public RegisterAllocation (Parser parsed) {
+        this.input = parsed;
+        this.numberOfRegistersBefore = parsed.numberOfRegisters;
+        final int numberOfCommands = parsed.commands.length;
+        uses = new BitSet [numberOfCommands];
+        defs = new BitSet [numberOfCommands];
+        for (int i=0; i<numberOfCommands; i++) {
+            uses[i] = new BitSet();
+            defs[i] = new BitSet();
+            findUsesAndDefs(parsed.commands[i], uses[i], defs[i]);
+        }
+        
+        final BitSet [] liveOut = computeLiveness(parsed, uses, defs);
+        final BitSet [] interference = new BitSet [numberOfRegistersBefore];
+        for (int i=0; i<numberOfRegistersBefore; i++)
+            interference[i] = new BitSet();
+        for (int i=0; i<numberOfCommands; i++) {
+            //the operands of one instruction always need different cells
+            BitSet operands = (BitSet)uses[i].clone();
+            operands.or(defs[i]);
+            for (int a=operands.nextSetBit(0); a>=0; a=operands.nextSetBit(a+1))
+                interference[a].or(operands);
+            for (int d=defs[i].nextSetBit(0); d>=0; d=defs[i].nextSetBit(d+1)) {
+                interference[d].or(liveOut[i]);
+                for (int l=liveOut[i].nextSetBit(0); l>=0; l=liveOut[i].nextSetBit(l+1))
+                    interference[l].set(d);
+            }
+        }
+        
+        //the registers with the most accesses get a cell first
+        final long [] weights = computeWeights();
+        List <Integer> registers = new ArrayList<>();
+        for (int i=0; i<numberOfRegistersBefore; i++)
+            registers.add(i);
+        Collections.sort(registers, new Comparator <Integer>() {
+            @Override
+            public int compare (Integer a, Integer b) {
+                return Long.compare(weights[b], weights[a]);
+            }
+        });
+        int [] regIndex2Color = new int [numberOfRegistersBefore];
+        Arrays.fill(regIndex2Color, -1);
+        List <Long> colorWeights = new ArrayList<>();
+        for (int reg : registers) {
+            BitSet usedColors = new BitSet();
+            for (int other=interference[reg].nextSetBit(0); other>=0; other=interference[reg].nextSetBit(other+1))
+                if (other != reg && regIndex2Color[other] >= 0)
+                    usedColors.set(regIndex2Color[other]);
+            regIndex2Color[reg] = usedColors.nextClearBit(0);
+            if (regIndex2Color[reg] == colorWeights.size())
+                colorWeights.add(0L);
+            colorWeights.set(regIndex2Color[reg], colorWeights.get(regIndex2Color[reg]) + weights[reg]);
+        }
+        
+        //the cell with the highest weight is the last one (in front of the reserved cells)
+        final List <Long> finalColorWeights = colorWeights;
+        List <Integer> colors = new ArrayList<>();
+        for (int i=0; i<colorWeights.size(); i++)
+            colors.add(i);
+        Collections.sort(colors, new Comparator <Integer>() {
+            @Override
+            public int compare (Integer a, Integer b) {
+                return Long.compare(finalColorWeights.get(a), finalColorWeights.get(b));
+            }
+        });
+        int [] color2Cell = new int [colors.size()];
+        for (int i=0; i<colors.size(); i++)
+            color2Cell[colors.get(i)] = i;
+        regIndex2Cell = new int [numberOfRegistersBefore];
+        for (int i=0; i<numberOfRegistersBefore; i++)
+            regIndex2Cell[i] = color2Cell[regIndex2Color[i]];
+        
+        Cmd [] commands = new Cmd [numberOfCommands];
+        for (int i=0; i<numberOfCommands; i++) {
+            Arg [] args = new Arg [parsed.commands[i].args.length];
+            for (int j=0; j<args.length; j++) {
+                final Arg arg = parsed.commands[i].args[j];
+                if (arg.argType == ArgType.MemAddrWide)
+                    args[j] = new Arg(arg.argType, arg.constValue, regIndex2Cell[arg.regIndex], regIndex2Cell[arg.regIndexHigh], arg.labelIndex);
+                else
+                    args[j] = (arg.argType == ArgType.Reg || arg.argType == ArgType.MemAddr ? new Arg(arg.argType, arg.constValue, regIndex2Cell[arg.regIndex], arg.labelIndex) : arg);
+            }
+            commands[i] = new Cmd(parsed.commands[i].cmdType, args);
+        }
+        this.parsed = new Parser(commands, parsed.labelOffsets, colors.size(), 0, parsed.globalMemory, parsed.stackSize);
+    }
+    
+    public void printStatistics () {
+        System.out.println("Registers: " + parsed.numberOfRegisters + "     (" + (numberOfRegistersBefore - parsed.numberOfRegisters) + " / " + numberOfRegistersBefore + " cells saved)");
+    }
+    
+    static void findUsesAndDefs (Cmd command, BitSet use, BitSet def) {
+        switch (command.cmdType) {
+            case Mov:
+            case Mul:
+            case Div:
+            case Pop:
+                //the first register is overwritten completely, memory-addresses are just read
+                for (int i=0; i<command.args.length; i++)
+                    if (command.args[i].argType == ArgType.Reg && i == 0)
+                        def.set(command.args[i].regIndex);
+                    else if (command.args[i].argType == ArgType.Reg && i == 1 && command.cmdType == CmdType.Div)
+                        def.set(command.args[i].regIndex);
+                    else if (command.args[i].argType == ArgType.Reg || command.args[i].argType == ArgType.MemAddr)
+                        use.set(command.args[i].regIndex);
+                    else if (command.args[i].argType == ArgType.MemAddrWide) {
+                        use.set(command.args[i].regIndex);
+                        use.set(command.args[i].regIndexHigh);
+                    }
+                break;
+            case Add:
+            case Sub:
+            case In:
+                //the first register is modified (in keeps the value at the end of the input, depending on the interpreter)
+                for (int i=0; i<command.args.length; i++)
+                    if (command.args[i].argType == ArgType.Reg) {
+                        use.set(command.args[i].regIndex);
+                        if (i == 0)
+                            def.set(command.args[i].regIndex);
+                    }
+                break;
+            default:
+                for (int i=0; i<command.args.length; i++)
+                    if (command.args[i].argType == ArgType.Reg || command.args[i].argType == ArgType.MemAddr)
+                        use.set(command.args[i].regIndex);
+                    else if (command.args[i].argType == ArgType.MemAddrWide) {
+                        use.set(command.args[i].regIndex);
+                        use.set(command.args[i].regIndexHigh);
+                    }
+                break;
+        }
+    }
+    
+    static List <Integer> getSuccessors (Parser input, int cmdOffset) {
+        final Cmd command = input.commands[cmdOffset];
+        List <Integer> ret = new ArrayList<>();
+        if (command.cmdType == CmdType.Ret) {
+            for (int i=0; i<input.commands.length; i++)
+                if (input.commands[i].cmdType == CmdType.Call)
+                    ret.add(i+1);
+        } else {
+            for (int i=0; i<command.args.length; i++)
+                if (command.args[i].argType == ArgType.Label)
+                    ret.add(input.labelOffsets[command.args[i].labelIndex]);
+            if (command.cmdType != CmdType.Jmp && command.cmdType != CmdType.Call)
+                ret.add(cmdOffset+1);
+        }
+        return ret;
+    }
+    
+    static BitSet [] computeLiveness (Parser input, BitSet [] uses, BitSet [] defs) {
+        final int numberOfCommands = input.commands.length;
+        List <List <Integer>> successors = new ArrayList<>();
+        for (int i=0; i<numberOfCommands; i++)
+            successors.add(getSuccessors(input, i));
+        BitSet [] liveIn = new BitSet [numberOfCommands+1], liveOut = new BitSet [numberOfCommands];
+        for (int i=0; i<=numberOfCommands; i++)
+            liveIn[i] = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i=numberOfCommands-1; i>=0; i--) {
+                BitSet out = new BitSet();
+                for (int successor : successors.get(i))
+                    out.or(liveIn[successor]);
+                BitSet in = (BitSet)out.clone();
+                in.andNot(defs[i]);
+                in.or(uses[i]);
+                liveOut[i] = out;
+                if (!in.equals(liveIn[i])) {
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+    
+    //every access counts loopWeight^(loop depth), a loop is the range from a label to a jump back to it
+    private long [] computeWeights () {
+        final int numberOfCommands = input.commands.length;
+        int [] loopDepth = new int [numberOfCommands];
+        for (int i=0; i<numberOfCommands; i++)
+            for (int j=0; j<input.commands[i].args.length; j++)
+                if (input.commands[i].args[j].argType == ArgType.Label && input.labelOffsets[input.commands[i].args[j].labelIndex] <= i)
+                    for (int k=input.labelOffsets[input.commands[i].args[j].labelIndex]; k<=i; k++)
+                        loopDepth[k]++;
+        long [] ret = new long [numberOfRegistersBefore];
+        for (int i=0; i<numberOfCommands; i++) {
+            long weight = 1;
+            for (int j=0; j<Math.min(loopDepth[i], maxLoopDepth); j++)
+                weight *= loopWeight;
+            BitSet accessed = (BitSet)uses[i].clone();
+            accessed.or(defs[i]);
+            for (int reg=accessed.nextSetBit(0); reg>=0; reg=accessed.nextSetBit(reg+1))
+                ret[reg] += weight;
+        }
+        return ret;
+    }
+    
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+public class SegmentSimplification {
+    
+    //simplifies the segments found by ControlFlowSegments.findSegmentStarts, every removed segment saves a round trip through the main-loop:
+    //  jump threading: a jump to a segment just containing 'jmp label' jumps directly to label
+    //  merging: a segment, which is just reached by falling through from the previous segment, is appended to it
+    //  unreachable segments are removed
+    
+    public final Parser parsed;
+    public final StructuredLoops loops;
+    public final List <Integer> segmentStarts = new ArrayList<>();
+    public final List <Integer> segmentEnds = new ArrayList<>();
+    public final int numberOfSegmentsBefore, numberOfMergedSegments, numberOfUnreachableSegments, numberOfThreadedJumps;
+    
+    public SegmentSimplification (Parser parsed) {
+        this.parsed = parsed;
+        this.loops = new StructuredLoops(parsed);
+        final List <Integer> startPts = ControlFlowSegments.findSegmentStarts(parsed, loops);
+        final int end = parsed.commands.length;
+        numberOfSegmentsBefore = startPts.size();
+        
+        //the segments reached by a jump (or a return) have to stay, the others are reached by falling through or not at all
+        Set <Integer> reachable = new HashSet<>(), jumpTargets = new HashSet<>();
+        LinkedList <Integer> toVisit = new LinkedList<>();
+        int threadedJumps = 0;
+        toVisit.add(0);
+        reachable.add(0);
+        while (!toVisit.isEmpty()) {
+            final int start = toVisit.removeFirst();
+            if (start == end)
+                continue;
+            final int next = startPts.get(startPts.indexOf(start)+1);
+            List <Integer> successors = new ArrayList<>();
+            final Cmd last = parsed.commands[next-1];
+            if (loops.loopEnd2Start.containsKey(next-1)) {
+                for (int i=loops.loopEnd2Start.get(next-1); i<next-1; i++)
+                    if (parsed.commands[i].isJumpInstruction())
+                        successors.add(parsed.labelOffsets[parsed.commands[i].args[1].labelIndex]);
+                successors.add(next);
+            } else if (last.isJumpInstruction() && last.cmdType != CmdType.Ret) {
+                for (int i=0; i<last.args.length; i++)
+                    if (last.args[i].argType == ArgType.Label)
+                        successors.add(parsed.labelOffsets[last.args[i].labelIndex]);
+                if (last.cmdType != CmdType.Jmp)
+                    successors.add(next);
+            } else if (!last.isJumpInstruction() && !reachable.contains(next)) {
+                reachable.add(next);
+                toVisit.add(next);
+            }
+            for (int successor : successors) {
+                final int target = getJumpTarget(successor);
+                if (target != successor)
+                    threadedJumps++;
+                jumpTargets.add(target);
+                if (reachable.add(target))
+                    toVisit.add(target);
+            }
+        }
+        numberOfThreadedJumps = threadedJumps;
+        
+        int mergedSegments = 0, unreachableSegments = 0;
+        boolean insideOfSegment = false;
+        for (int start : startPts) {
+            if (start == end)
+                break;
+            if (start == 0 || jumpTargets.contains(start)) {
+                if (insideOfSegment)
+                    segmentEnds.add(start);
+                segmentStarts.add(start);
+                insideOfSegment = true;
+            } else if (reachable.contains(start) && insideOfSegment && !parsed.commands[start-1].isJumpInstruction())
+                mergedSegments++;
+            else {
+                if (insideOfSegment)
+                    segmentEnds.add(start);
+                insideOfSegment = false;
+                unreachableSegments++;
+            }
+        }
+        if (insideOfSegment)
+            segmentEnds.add(end);
+        segmentStarts.add(end);
+        segmentEnds.add(end);
+        numberOfMergedSegments = mergedSegments;
+        numberOfUnreachableSegments = unreachableSegments;
+    }
+    
+    //follows jumps to segments just containing 'jmp label' (cycles are not followed)
+    public int getJumpTarget (int cmdOffset) {
+        Set <Integer> visited = new HashSet<>();
+        int ret = cmdOffset;
+        while (ret < parsed.commands.length && parsed.commands[ret].cmdType == CmdType.Jmp && !loops.isInsideOfLoop(ret) && visited.add(ret))
+            ret = parsed.labelOffsets[parsed.commands[ret].args[0].labelIndex];
+        return (ret < parsed.commands.length && parsed.commands[ret].cmdType == CmdType.Jmp && visited.contains(ret) ? cmdOffset : ret);
+    }
+    
+    public void printStatistics () {
+        System.out.println("Segments: " + segmentStarts.size() + "     (" + (numberOfSegmentsBefore - segmentStarts.size()) + " / " + numberOfSegmentsBefore + " removed: " + numberOfMergedSegments + " merged, " + numberOfUnreachableSegments + " unreachable)");
+        System.out.println("Jumps threaded: " + numberOfThreadedJumps);
+    }
+    
+}
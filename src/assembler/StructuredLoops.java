@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package assembler;
+
+import assembler.Parser.ArgType;
+import assembler.Parser.Cmd;
+import assembler.Parser.CmdType;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StructuredLoops {
+    
+    //finds loops, which can be translated to a brainfuck-loop inside of one segment (instead of a round trip through the main-loop):
+    //  label:
+    //      ..                  (no jump instructions, except of jz/jnz leaving the loop)
+    //      jz/jnz $0, label    (the back-edge, or jmp label, then the loop is just left by the jz/jnz)
+    //the loop has to be single-entry: no jump outside of the loop targets the label or a command inside of the loop
+    
+    public final Parser parsed;
+    public final Map <Integer, Integer> loopEnd2Start = new HashMap<>();
+    
+    public StructuredLoops (Parser parsed) {
+        this.parsed = parsed;
+        for (int i=0; i<parsed.commands.length; i++) {
+            final Cmd command = parsed.commands[i];
+            if ((command.cmdType == CmdType.Jz || command.cmdType == CmdType.Jnz) && isLoop(parsed.labelOffsets[command.args[1].labelIndex], i))
+                loopEnd2Start.put(i, parsed.labelOffsets[command.args[1].labelIndex]);
+            else if (command.cmdType == CmdType.Jmp && isLoop(parsed.labelOffsets[command.args[0].labelIndex], i))
+                loopEnd2Start.put(i, parsed.labelOffsets[command.args[0].labelIndex]);
+        }
+    }
+    
+    public boolean isInsideOfLoop (int cmdOffset) {
+        for (Map.Entry <Integer, Integer> loop : loopEnd2Start.entrySet())
+            if (cmdOffset > loop.getValue() && cmdOffset <= loop.getKey())
+                return true;
+        return false;
+    }
+    
+    private boolean isLoop (int fromIncl, int toIncl) {
+        if (fromIncl > toIncl)
+            return false;
+        for (int i=fromIncl; i<toIncl; i++) {
+            final Cmd command = parsed.commands[i];
+            if (command.isJumpInstruction() && command.cmdType != CmdType.Jz && command.cmdType != CmdType.Jnz)
+                return false;
+            if (command.isJumpInstruction() && isTarget(command, fromIncl, toIncl))
+                return false;
+        }
+        for (int i=0; i<parsed.commands.length; i++)
+            if ((i < fromIncl || i > toIncl) && parsed.commands[i].isJumpInstruction() && isTarget(parsed.commands[i], fromIncl, toIncl))
+                return false;
+        return true;
+    }
+    
+    //returns true, if the command jumps to a label in [fromIncl, toIncl]
+    private boolean isTarget (Cmd command, int fromIncl, int toIncl) {
+        for (int i=0; i<command.args.length; i++)
+            if (command.args[i].argType == ArgType.Label && parsed.labelOffsets[command.args[i].labelIndex] >= fromIncl && parsed.labelOffsets[command.args[i].labelIndex] <= toIncl)
+                return true;
+        return false;
+    }
+    
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.util.Arrays;
+
+public class BrainfuckProgram {
+    
+    //preprocessed brainfuck-code, shared by the interpreters:
+    //everything except the 8 instructions is removed and the brackets are matched in one pass
+    
+    public final String code;
+    public final int [] jumpTable;
+    
+    public BrainfuckProgram (String rawCode) {
+        StringBuilder filtered = new StringBuilder(rawCode.length());
+        int [] jumpTable = new int [rawCode.length()];
+        int [] openBrackets = new int [16];
+        int [] openBracketsRawPosition = new int [16];
+        int numberOfOpenBrackets = 0;
+        for (int i=0; i<rawCode.length(); i++) {
+            final char cmd = rawCode.charAt(i);
+            if (cmd == '[') {
+                if (numberOfOpenBrackets == openBrackets.length) {
+                    openBrackets = Arrays.copyOf(openBrackets, openBrackets.length*2);
+                    openBracketsRawPosition = Arrays.copyOf(openBracketsRawPosition, openBracketsRawPosition.length*2);
+                }
+                openBrackets[numberOfOpenBrackets] = filtered.length();
+                openBracketsRawPosition[numberOfOpenBrackets] = i;
+                numberOfOpenBrackets++;
+            } else if (cmd == ']') {
+                if (numberOfOpenBrackets == 0)
+                    throw new RuntimeException("unbalanced brackets: ']' at position " + i + " has no matching '['.");
+                numberOfOpenBrackets--;
+                jumpTable[openBrackets[numberOfOpenBrackets]] = filtered.length();
+                jumpTable[filtered.length()] = openBrackets[numberOfOpenBrackets];
+            } else if (cmd != '+' && cmd != '-' && cmd != '<' && cmd != '>' && cmd != '.' && cmd != ',')
+                continue;
+            filtered.append(cmd);
+        }
+        if (numberOfOpenBrackets > 0)
+            throw new RuntimeException("unbalanced brackets: '[' at position " + openBracketsRawPosition[numberOfOpenBrackets-1] + " has no matching ']'.");
+        
+        this.code = filtered.toString();
+        this.jumpTable = (filtered.length() == rawCode.length() ? jumpTable : Arrays.copyOf(jumpTable, filtered.length()));
+    }
+    
+}
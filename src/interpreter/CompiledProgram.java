@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+public abstract class CompiledProgram {
+    
+    //base-class of the classes generated by JvmCompiler
+    //the generated methods copy c and p into local variables and write p back before calling another method
+    
+    protected FlatTape tape;
+    protected OutputSink output;
+    protected InputSource input;
+    protected byte [] c;
+    protected int p;
+    
+    public void run (FlatTape tape, OutputSink output, InputSource input) {
+        this.tape = tape;
+        this.output = output;
+        this.input = input;
+        this.p = tape.ensure(tape.origin);
+        this.c = tape.cells;
+        try {
+            body();
+        } catch (Terminate e) {
+        }
+    }
+    
+    protected abstract void body ();
+    
+    protected int grow (int index) {
+        final int ret = tape.ensure(index);
+        c = tape.cells;
+        return ret;
+    }
+    
+    protected int scan (int index, int stride) {
+        final int ret = tape.scan(index, stride);
+        c = tape.cells;
+        return ret;
+    }
+    
+    //returns the index of the pointer after the lookup or ~index, if the lookup has to be executed step by step
+    protected int memoryIdiom (int index, int opcode, int argument) {
+        final int ret = MemoryIdioms.execute(tape, opcode, argument, index);
+        c = tape.cells;
+        return (ret < 0 ? ~index : ret);
+    }
+    
+    protected byte read (byte currentValue) {
+        output.flush();
+        final int value = input.read(currentValue);
+        if (value < 0)
+            throw new Terminate();
+        return (byte)value;
+    }
+    
+    protected static class Terminate extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        public Terminate () {
+            super(null, null, false, false);
+        }
+        
+    }
+    
+}
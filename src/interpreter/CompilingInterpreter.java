@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+public class CompilingInterpreter extends OptimizingInterpreter {
+    
+    //the lowered code is compiled to a jvm-class first (see JvmCompiler) and executed by the jvm
+    
+    public CompilingInterpreter () {
+        this(new FlatTape());
+    }
+    
+    public CompilingInterpreter (FlatTape tape) {
+        this(tape, new OutputSink(), new InputSource());
+    }
+    
+    public CompilingInterpreter (FlatTape tape, OutputSink output, InputSource input) {
+        super(tape, output, input);
+    }
+    
+    @Override
+    public void execute (String code) {
+        new JvmCompiler(LoweredProgram.lower(new BrainfuckProgram(code))).load().run(flatTape, output, input);
+        finish();
+    }
+    
+}
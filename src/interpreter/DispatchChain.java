@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import assembler.ControlFlowSegments;
+import assembler.MiniCode;
+import assembler.Optimizer;
+import java.util.Arrays;
+
+public class DispatchChain {
+    
+    //the main-loop of ControlFlowSegments tests the segments one after another: the main-loop position is decremented
+    //once per segment and the segment is entered when it reaches 0, so every jump costs O(number of segments)
+    //the chain is recognized while lowering, opDispatch jumps directly into the body of the segment (using a jump-table)
+    //and opDispatchExit jumps from the end of a body directly to the end of the main-loop
+    //both instructions check that the chain would behave the same, otherwise the chain is executed step by step
+    
+    public static final int tmpOffset, flagOffset;
+    public static final String loopStart, segmentTest, segmentEnd, lastSegmentEnd;
+    public static final boolean templatesValid;
+    
+    static {
+        MiniCode miniCode = new MiniCode(0);
+        final int mainLoop = miniCode.getReservedMainLoopPosition();
+        tmpOffset = 2;
+        flagOffset = 3;
+        
+        loopStart = "[[-]" + miniCode.move(mainLoop, mainLoop+1) + "[-" + miniCode.move(mainLoop+1, mainLoop) + "+" + miniCode.move(mainLoop, mainLoop+1) + "]" + miniCode.move(mainLoop+1, mainLoop);
+        segmentTest = "[-" + miniCode.move(mainLoop, mainLoop+flagOffset) + "+" + miniCode.move(mainLoop+flagOffset, mainLoop+tmpOffset) + "+" + miniCode.move(mainLoop+tmpOffset, mainLoop) + "]"
+                + miniCode.move(mainLoop, mainLoop+flagOffset) + "[-" + miniCode.move(mainLoop+flagOffset, mainLoop) + "+" + miniCode.move(mainLoop, mainLoop+flagOffset) + "]"
+                + "+" + miniCode.move(mainLoop+flagOffset, mainLoop+tmpOffset) + "[[-]" + miniCode.move(mainLoop+tmpOffset, mainLoop+flagOffset) + "-" + miniCode.move(mainLoop+flagOffset, mainLoop+tmpOffset) + "]" + miniCode.move(mainLoop+tmpOffset, mainLoop+flagOffset) + "[";
+        segmentEnd = miniCode.move(mainLoop+flagOffset, mainLoop) + "-";
+        lastSegmentEnd = miniCode.move(mainLoop+flagOffset, mainLoop) + "]";
+        
+        //the templates have to match the current code of ControlFlowSegments, otherwise they are not used
+        templatesValid = Optimizer.optimizeSimple(ControlFlowSegments.createSegmentTest(miniCode), true).equals(segmentTest + "-");
+    }
+    
+    public final int outerLoop, chainStart;
+    public final int [] segmentLoops;       //positions of the '[' of the bodies
+    public final int [] segmentExits;       //positions behind the ']' of the bodies
+    
+    public DispatchChain (int outerLoop, int chainStart, int [] segmentLoops, int [] segmentExits) {
+        this.outerLoop = outerLoop;
+        this.chainStart = chainStart;
+        this.segmentLoops = segmentLoops;
+        this.segmentExits = segmentExits;
+    }
+    
+    //number of decrements of the main-loop position behind the body of the segment
+    public int getRemainingDecrements (int segment) {
+        return segmentLoops.length-1 - segment;
+    }
+    
+    //returns the chain starting at the loop at position or null
+    public static DispatchChain match (String bfCode, int [] jumpTable, int position) {
+        if (!templatesValid || !bfCode.startsWith(loopStart, position))
+            return null;
+        final int end = jumpTable[position];
+        int [] segmentLoops = new int [16];
+        int numberOfSegments = 0;
+        for (int i=position+loopStart.length(); bfCode.startsWith(segmentTest, i); ) {
+            if (numberOfSegments == segmentLoops.length)
+                segmentLoops = Arrays.copyOf(segmentLoops, numberOfSegments*2);
+            final int bodyLoop = i + segmentTest.length()-1;
+            segmentLoops[numberOfSegments++] = bodyLoop;
+            if (bfCode.startsWith(lastSegmentEnd, jumpTable[bodyLoop]+1) && jumpTable[bodyLoop]+lastSegmentEnd.length() == end) {
+                int [] segmentExits = new int [numberOfSegments];
+                for (int j=0; j<numberOfSegments; j++)
+                    segmentExits[j] = jumpTable[segmentLoops[j]]+1;
+                return new DispatchChain(position, position+loopStart.length(), Arrays.copyOf(segmentLoops, numberOfSegments), segmentExits);
+            }
+            if (!bfCode.startsWith(segmentEnd, jumpTable[bodyLoop]+1))
+                return null;
+            i = jumpTable[bodyLoop]+1 + segmentEnd.length();
+        }
+        return null;
+    }
+    
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class FlatTape implements Tape {
+    
+    //all cells are in one array, cell 0 is at cells[origin]
+    //the array grows by doubling to the left or to the right, when an index outside of it is requested
+    
+    public static final int defaultSize = (1 << 12);
+    
+    //the highest bits of the bytes 0, 3 and 6 of a word (big-endian)
+    private static final long stride3Mask = 0x8000008000008000L;
+    
+    public byte [] cells;
+    public int origin;
+    private ByteBuffer words;
+    
+    public FlatTape () {
+        this(defaultSize);
+    }
+    
+    public FlatTape (int initialSize) {
+        cells = new byte [Math.max(1, initialSize)];
+        origin = 0;
+    }
+    
+    public FlatTape copy () {
+        FlatTape ret = new FlatTape(0);
+        ret.cells = cells.clone();
+        ret.origin = origin;
+        return ret;
+    }
+    
+    //index is an array-index (origin + position), the returned index addresses the same cell (cells might be moved)
+    public int ensure (int index) {
+        if (index >= 0 && index < cells.length)
+            return index;
+        if (index >= 0) {
+            int newLength = cells.length*2;
+            while (index >= newLength)
+                newLength *= 2;
+            cells = Arrays.copyOf(cells, newLength);
+            return index;
+        } else {
+            int newLength = cells.length*2;
+            while (index + (newLength - cells.length) < 0)
+                newLength *= 2;
+            final int shift = newLength - cells.length;
+            byte [] newCells = new byte [newLength];
+            System.arraycopy(cells, 0, newCells, shift, cells.length);
+            cells = newCells;
+            origin += shift;
+            return index + shift;
+        }
+    }
+    
+    //returns the array-index of the first cell containing 0 at index, index+stride, index+2*stride, ...
+    //cells outside of the array are 0, so the scan stops at the border at the latest
+    public int scan (int index, int stride) {
+        if (stride == 1)
+            index = scanRight(index);
+        else if (stride == -1)
+            index = scanLeft(index);
+        else if (stride == 3)
+            index = scanRight3(index);
+        else if (stride == -3)
+            index = scanLeft3(index);
+        else
+            while (index >= 0 && index < cells.length && cells[index] != 0)
+                index += stride;
+        return ensure(index);
+    }
+    
+    //8 cells are tested at once: a word contains a 0-byte if (word - 0x01..01) & ~word & 0x80..80 is not 0
+    private int scanRight (int index) {
+        if (index < 0 || index >= cells.length || cells[index] == 0)
+            return index;
+        if (words == null || words.array() != cells)
+            words = ByteBuffer.wrap(cells);
+        for (; index+8 <= cells.length; index+=8) {
+            final long word = words.getLong(index);
+            if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) != 0)
+                break;
+        }
+        while (index < cells.length && cells[index] != 0)
+            index++;
+        return index;
+    }
+    
+    private int scanLeft (int index) {
+        if (index < 0 || index >= cells.length || cells[index] == 0)
+            return index;
+        if (words == null || words.array() != cells)
+            words = ByteBuffer.wrap(cells);
+        for (; index-7 >= 0; index-=8) {
+            final long word = words.getLong(index-7);
+            if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) != 0)
+                break;
+        }
+        while (index >= 0 && cells[index] != 0)
+            index--;
+        return index;
+    }
+    
+    //3 cells are tested at once (the cells of one word at the offsets 0, 3 and 6), the flat memory uses a stride of 3
+    //the test has to be exact for every byte, since the bytes in between are not tested
+    private int scanRight3 (int index) {
+        if (index < 0 || index >= cells.length || cells[index] == 0)
+            return index;
+        if (words == null || words.array() != cells)
+            words = ByteBuffer.wrap(cells);
+        for (; index+8 <= cells.length; index+=9)
+            if (containsZero(words.getLong(index), stride3Mask))
+                break;
+        while (index < cells.length && cells[index] != 0)
+            index += 3;
+        return index;
+    }
+    
+    private int scanLeft3 (int index) {
+        if (index < 0 || index >= cells.length || cells[index] == 0)
+            return index;
+        if (words == null || words.array() != cells)
+            words = ByteBuffer.wrap(cells);
+        for (; index-6 >= 0 && index+2 <= cells.length; index-=9)
+            if (containsZero(words.getLong(index-6), stride3Mask))
+                break;
+        while (index >= 0 && cells[index] != 0)
+            index -= 3;
+        return index;
+    }
+    
+    //the highest bit of a byte is set, if the byte is 0 (no carries between the bytes)
+    private static boolean containsZero (long word, long mask) {
+        return (~(((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word) & mask) != 0;
+    }
+    
+    @Override
+    public byte get (int position) {
+        final int index = origin + position;
+        return (index >= 0 && index < cells.length ? cells[index] : 0);
+    }
+    
+    @Override
+    public void set (int position, byte value) {
+        final int index = ensure(origin + position);
+        cells[index] = value;
+    }
+    
+    @Override
+    public void add (int position, int value) {
+        final int index = ensure(origin + position);
+        cells[index] += value;
+    }
+    
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class InputSource {
+    
+    //what ',' does when there is no input left:
+    //Unchanged: the cell keeps its value, Zero: the cell is set to 0, MinusOne: the cell is set to 255, Terminate: the program ends
+    public enum EofPolicy {Unchanged, Zero, MinusOne, Terminate};
+    
+    public static final int defaultBufferSize = (1 << 13);
+    
+    public final InputStream in;
+    public final EofPolicy eofPolicy;
+    private final byte [] buffer;
+    private int bufferUsed = 0, bufferPos = 0;
+    private boolean eofReached = false;
+    
+    public InputSource () {
+        this(System.in, EofPolicy.Unchanged);
+    }
+    
+    public InputSource (InputStream in, EofPolicy eofPolicy) {
+        this(in, eofPolicy, defaultBufferSize);
+    }
+    
+    public InputSource (InputStream in, EofPolicy eofPolicy, int bufferSize) {
+        this.in = in;
+        this.eofPolicy = eofPolicy;
+        this.buffer = new byte [Math.max(1, bufferSize)];
+    }
+    
+    //returns the new content of the cell (0..255) or -1 if the program has to be terminated
+    public int read (int currentValue) {
+        if (bufferPos == bufferUsed && !eofReached) {
+            try {
+                //blocks until at least one byte is available, returns whatever is available then
+                bufferUsed = in.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            bufferPos = 0;
+            if (bufferUsed <= 0) {
+                bufferUsed = 0;
+                eofReached = true;
+            }
+        }
+        if (bufferPos < bufferUsed)
+            return buffer[bufferPos++] & 0xFF;
+        
+        switch (eofPolicy) {
+            case Unchanged:
+                return currentValue & 0xFF;
+            case Zero:
+                return 0;
+            case MinusOne:
+                return 255;
+            case Terminate:
+                return -1;
+            default:
+                throw new RuntimeException("unknown eof-policy. (internal error)");
+        }
+    }
+    
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class JvmCompiler {
+    
+    //translates a LoweredProgram into the source of one class extending CompiledProgram and compiles it with the
+    //java-compiler of the running jdk, the class is loaded in-process (so the jit can optimize it) or written to a jar
+    //loops are translated to while-loops, a method contains at most maxOpsPerMethod instructions (methods are limited to 64kb)
+    
+    public static final int maxOpsPerMethod = 1000;
+    public static final String defaultClassName = "CompiledBrainfuck";
+    
+    public final String className;
+    public final String source;
+    public final byte [] classFile;
+    
+    private final int [] code;
+    private final List <StringBuilder> methods = new ArrayList<>();
+    
+    public JvmCompiler (LoweredProgram program) {
+        this(program, defaultClassName);
+    }
+    
+    public JvmCompiler (LoweredProgram program, String className) {
+        this.className = className;
+        this.code = program.code;
+        this.source = createSource();
+        this.classFile = compile(className, source);
+    }
+    
+    public CompiledProgram load () {
+        try {
+            return (CompiledProgram)new ClassLoader(CompiledProgram.class.getClassLoader()) {
+                public Class <?> define () {
+                    return defineClass(className, classFile, 0, classFile.length);
+                }
+            }.define().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    //the jar just contains the generated class, the classes of the package interpreter have to be in the class-path
+    public void writeJar (String path) {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(path), manifest)) {
+            jar.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+            jar.write(classFile);
+            jar.closeEntry();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private String createSource () {
+        StringBuilder body = newMethod("body", "protected");
+        appendStatements(0, code.length, body, 2);
+        closeMethod(body);
+        
+        StringBuilder ret = new StringBuilder();
+        ret.append("public final class ").append(className).append(" extends interpreter.CompiledProgram {\n\n");
+        ret.append("    public static void main (String [] args) {\n");
+        ret.append("        interpreter.OutputSink output = new interpreter.OutputSink();\n");
+        ret.append("        new ").append(className).append("().run(new interpreter.FlatTape(), output, new interpreter.InputSource());\n");
+        ret.append("        output.write((byte)'\\n');\n");
+        ret.append("        output.flush();\n");
+        ret.append("    }\n\n");
+        for (StringBuilder method : methods)
+            ret.append(method).append("\n");
+        ret.append("}\n");
+        return ret.toString();
+    }
+    
+    private StringBuilder newMethod (String name, String visibility) {
+        StringBuilder ret = new StringBuilder();
+        ret.append("    ").append(visibility).append(" void ").append(name).append(" () {\n");
+        ret.append("        byte [] c = this.c;\n");
+        ret.append("        int p = this.p;\n");
+        methods.add(ret);
+        return ret;
+    }
+    
+    private void closeMethod (StringBuilder method) {
+        method.append("        this.p = p;\n");
+        method.append("    }\n");
+    }
+    
+    private void appendCall (StringBuilder method, int indent, String name) {
+        appendLine(method, indent, "this.p = p;");
+        appendLine(method, indent, name + "();");
+        appendLine(method, indent, "c = this.c;");
+        appendLine(method, indent, "p = this.p;");
+    }
+    
+    //appends the instructions [fromIncl, toExcl), the rest is moved into a new method when the method gets too large
+    private int appendStatements (int fromIncl, int toExcl, StringBuilder method, int indent) {
+        int size = 0;
+        for (int i=fromIncl; i<toExcl; ) {
+            final int next = (code[i] == LoweredProgram.opJumpZero || isMemoryIdiom(code[i]) ? code[i+1] : i + LoweredProgram.getInstructionLength(code[i]));
+            final int itemSize = getNumberOfInstructions(i, next);
+            if (size > 0 && size + Math.min(itemSize, maxOpsPerMethod) > maxOpsPerMethod) {
+                final String name = "m" + methods.size();
+                StringBuilder rest = newMethod(name, "private");
+                appendStatements(i, toExcl, rest, 2);
+                closeMethod(rest);
+                appendCall(method, indent, name);
+                return size+1;
+            }
+            if (code[i] == LoweredProgram.opJumpZero && itemSize > maxOpsPerMethod) {
+                final String name = "m" + methods.size();
+                StringBuilder loop = newMethod(name, "private");
+                appendLine(loop, 2, "while (c[p] != 0) {");
+                appendStatements(i+2, next-2, loop, 3);
+                appendLine(loop, 2, "}");
+                closeMethod(loop);
+                appendCall(method, indent, name);
+                size++;
+            } else if (code[i] == LoweredProgram.opJumpZero) {
+                appendLine(method, indent, "while (c[p] != 0) {");
+                size += appendStatements(i+2, next-2, method, indent+1) + 1;
+                appendLine(method, indent, "}");
+            } else if (isMemoryIdiom(code[i])) {
+                //the step by step code is executed, if the lookup can't be done in one step
+                appendLine(method, indent, "p = memoryIdiom(p, " + code[i] + ", " + code[i+2] + ");");
+                appendLine(method, indent, "c = this.c;");
+                appendLine(method, indent, "if (p < 0) {");
+                appendLine(method, indent+1, "p = ~p;");
+                size += appendStatements(i+3, next, method, indent+1) + 1;
+                appendLine(method, indent, "}");
+            } else {
+                appendInstruction(i, method, indent);
+                size++;
+            }
+            i = next;
+        }
+        return size;
+    }
+    
+    private static boolean isMemoryIdiom (int opcode) {
+        return opcode == LoweredProgram.opMemLoad || opcode == LoweredProgram.opMemStore || opcode == LoweredProgram.opMemSet;
+    }
+    
+    private int getNumberOfInstructions (int fromIncl, int toExcl) {
+        int ret = 0;
+        for (int i=fromIncl; i<toExcl; i+=LoweredProgram.getInstructionLength(code[i]))
+            ret++;
+        return ret;
+    }
+    
+    private void appendInstruction (int i, StringBuilder method, int indent) {
+        switch (code[i]) {
+            case LoweredProgram.opAdd:
+                appendLine(method, indent, "c[p] += " + code[i+1] + ";");
+                break;
+            case LoweredProgram.opMove:
+                appendLine(method, indent, "p += " + code[i+1] + ";");
+                appendLine(method, indent, (code[i+1] > 0 ? "if (p >= c.length) {" : "if (p < 0) {"));
+                appendLine(method, indent+1, "p = grow(p);");
+                appendLine(method, indent+1, "c = this.c;");
+                appendLine(method, indent, "}");
+                break;
+            case LoweredProgram.opClear:
+                appendLine(method, indent, "c[p] = 0;");
+                break;
+            case LoweredProgram.opMulAdd:
+                appendLine(method, indent, "if (c[p] != 0) {");
+                appendLine(method, indent+1, "int d = p + " + code[i+1] + ";");
+                appendLine(method, indent+1, "if (d < 0 || d >= c.length) {");
+                appendLine(method, indent+2, "d = grow(d);");
+                appendLine(method, indent+2, "p = d - " + code[i+1] + ";");
+                appendLine(method, indent+2, "c = this.c;");
+                appendLine(method, indent+1, "}");
+                appendLine(method, indent+1, "c[d] += c[p] * " + code[i+2] + ";");
+                appendLine(method, indent, "}");
+                break;
+            case LoweredProgram.opScan:
+                appendLine(method, indent, "if (c[p] != 0) {");
+                appendLine(method, indent+1, "p = scan(p, " + code[i+1] + ");");
+                appendLine(method, indent+1, "c = this.c;");
+                appendLine(method, indent, "}");
+                break;
+            case LoweredProgram.opOut:
+                appendLine(method, indent, "output.write(c[p]);");
+                break;
+            case LoweredProgram.opIn:
+                appendLine(method, indent, "c[p] = read(c[p]);");
+                break;
+            case LoweredProgram.opDispatch:
+            case LoweredProgram.opDispatchExit:
+                //java can't jump into loops, the tests of the segments are executed
+                break;
+            default:
+                throw new RuntimeException("unknown opcode. (internal error)");
+        }
+    }
+    
+    private static void appendLine (StringBuilder method, int indent, String line) {
+        for (int i=0; i<indent; i++)
+            method.append("    ");
+        method.append(line).append("\n");
+    }
+    
+    private static byte [] compile (String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new RuntimeException("no java-compiler available. (a jdk is needed to compile to jvm-classes)");
+        
+        final ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        DiagnosticCollector <JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager <JavaFileManager>(standardFileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput (JavaFileManager.Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream () {
+                        return classFile;
+                    }
+                };
+            }
+        };
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent (boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        
+        List <String> options = Arrays.asList("-g:none", "-nowarn", "-classpath", System.getProperty("java.class.path"));
+        if (!compiler.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sourceFile)).call())
+            throw new RuntimeException("could not compile the generated class. (internal error)  " + diagnostics.getDiagnostics());
+        return classFile.toByteArray();
+    }
+    
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class LoweredProgram {
+    
+    //every instruction is an opcode followed by its arguments (the comments show the layout)
+    public static final int opAdd = 0;          //opAdd, value
+    public static final int opMove = 1;         //opMove, offset
+    public static final int opClear = 2;        //opClear
+    public static final int opMulAdd = 3;       //opMulAdd, offset, factor     (cell[p+offset] += cell[p]*factor)
+    public static final int opJumpZero = 4;     //opJumpZero, dst              (dst is behind the matching opJumpNonZero)
+    public static final int opJumpNonZero = 5;  //opJumpNonZero, dst           (dst is behind the matching opJumpZero)
+    public static final int opOut = 6;          //opOut
+    public static final int opIn = 7;           //opIn
+    public static final int opScan = 8;         //opScan, stride               (moves by stride until cell[p] == 0)
+    public static final int opMemLoad = 9;      //opMemLoad, skip, tmpOffset   (memory-lookups of MiniCode, see MemoryIdioms)
+    public static final int opMemStore = 10;    //opMemStore, skip, tmpOffset  (skip is behind the step by step code following the instruction)
+    public static final int opMemSet = 11;      //opMemSet, skip, value
+    public static final int opDispatch = 12;    //opDispatch, table            (main-loop of ControlFlowSegments, see DispatchChain)
+    public static final int opDispatchExit = 13;//opDispatchExit, dst, remainingDecrements
+    
+    //actions at positions of a dispatch-chain (while lowering)
+    private static final int chainDispatch = 0, chainBody = 1, chainExit = 2, chainEnd = 3;
+    
+    public final int [] code;
+    public final int [][] jumpTables;
+    
+    public LoweredProgram (int [] code) {
+        this(code, new int [0][]);
+    }
+    
+    public LoweredProgram (int [] code, int [][] jumpTables) {
+        this.code = code;
+        this.jumpTables = jumpTables;
+    }
+    
+    public static int getInstructionLength (int opcode) {
+        switch (opcode) {
+            case opClear:
+            case opOut:
+            case opIn:
+                return 1;
+            case opAdd:
+            case opMove:
+            case opScan:
+            case opDispatch:
+            case opJumpZero:
+            case opJumpNonZero:
+                return 2;
+            case opMulAdd:
+            case opMemLoad:
+            case opMemStore:
+            case opMemSet:
+            case opDispatchExit:
+                return 3;
+            default:
+                throw new RuntimeException("unknown opcode. (internal error)");
+        }
+    }
+    
+    public static LoweredProgram lower (BrainfuckProgram program) {
+        return lower(program, true);
+    }
+    
+    //if idioms is set, the memory-lookups of MiniCode are lowered to opMemLoad, opMemStore or opMemSet
+    //followed by the normal lowering of the lookup, which is executed if the address-cell contains 0
+    //and the dispatch-chains of ControlFlowSegments get an opDispatch and an opDispatchExit per segment
+    public static LoweredProgram lower (BrainfuckProgram program, boolean idioms) {
+        final String bfCode = program.code;
+        final int [] matchingBracket = program.jumpTable;
+        Code ret = new Code();
+        List <Integer> openLoops = new ArrayList<>();
+        int idiomEnd = -1, idiomIndex = -1;
+        Map <Integer, int []> chainActions = new HashMap<>();
+        List <int []> jumpTables = new ArrayList<>();
+        List <List <Integer>> exitInstructions = new ArrayList<>();
+        for (int i=0; i<bfCode.length(); i++) {
+            if (i == idiomEnd) {
+                ret.code[idiomIndex+1] = ret.size;
+                idiomEnd = -1;
+            }
+            final int [] chainAction = chainActions.get(i);
+            if (chainAction != null && chainAction[0] == chainDispatch)
+                ret.add(opDispatch, chainAction[1]);
+            else if (chainAction != null && chainAction[0] == chainExit) {
+                exitInstructions.get(chainAction[1]).add(ret.size);
+                ret.add(opDispatchExit, -1, chainAction[2]);
+            } else if (chainAction != null && chainAction[0] == chainEnd)
+                for (int exitInstruction : exitInstructions.get(chainAction[1]))
+                    ret.code[exitInstruction+1] = ret.size;
+            
+            final char cmd = bfCode.charAt(i);
+            if (cmd == '[' && idioms && idiomEnd < 0) {
+                final int [] idiom = MemoryIdioms.match(bfCode, i);
+                if (idiom != null) {
+                    idiomIndex = ret.size;
+                    idiomEnd = idiom[2];
+                    ret.add(idiom[0], -1, idiom[1]);
+                }
+                final DispatchChain chain = (idiom == null ? DispatchChain.match(bfCode, matchingBracket, i) : null);
+                if (chain != null) {
+                    final int table = jumpTables.size();
+                    jumpTables.add(new int [chain.segmentLoops.length]);
+                    Arrays.fill(jumpTables.get(table), -1);
+                    exitInstructions.add(new ArrayList <Integer>());
+                    chainActions.put(chain.chainStart, new int [] {chainDispatch, table});
+                    for (int segment=0; segment<chain.segmentLoops.length; segment++) {
+                        chainActions.put(chain.segmentLoops[segment], new int [] {chainBody, table, segment});
+                        if (segment < chain.segmentLoops.length-1)
+                            chainActions.put(chain.segmentExits[segment], new int [] {chainExit, table, chain.getRemainingDecrements(segment)});
+                    }
+                    chainActions.put(matchingBracket[i], new int [] {chainEnd, table});
+                }
+            }
+            if (cmd == '+' || cmd == '-') {
+                int value = 0;
+                for (; i<bfCode.length() && (bfCode.charAt(i) == '+' || bfCode.charAt(i) == '-'); i++)
+                    value += (bfCode.charAt(i) == '+' ? 1 : -1);
+                i--;
+                if ((value & 0xFF) != 0)
+                    ret.add(opAdd, value);
+            } else if (cmd == '<' || cmd == '>') {
+                int offset = 0;
+                for (; i<bfCode.length() && (bfCode.charAt(i) == '>' || bfCode.charAt(i) == '<'); i++)
+                    offset += (bfCode.charAt(i) == '>' ? 1 : -1);
+                i--;
+                if (offset != 0)
+                    ret.add(opMove, offset);
+            } else if (cmd == '.')
+                ret.add(opOut);
+            else if (cmd == ',')
+                ret.add(opIn);
+            else if (cmd == '[') {
+                if (lowerSimpleLoop(bfCode, i+1, matchingBracket[i], ret))
+                    i = matchingBracket[i];
+                else {
+                    //the body of a segment is entered with the flag-cell set to 1, just behind the opJumpZero
+                    if (chainAction != null && chainAction[0] == chainBody)
+                        jumpTables.get(chainAction[1])[chainAction[2]] = ret.size+2;
+                    openLoops.add(ret.size);
+                    ret.add(opJumpZero, -1);
+                }
+            } else if (cmd == ']') {
+                final int jumpZeroIndex = openLoops.remove(openLoops.size()-1);
+                ret.add(opJumpNonZero, jumpZeroIndex+2);
+                ret.code[jumpZeroIndex+1] = ret.size;
+            }
+        }
+        if (idiomEnd >= 0)
+            ret.code[idiomIndex+1] = ret.size;
+        return new LoweredProgram(Arrays.copyOf(ret.code, ret.size), jumpTables.toArray(new int [jumpTables.size()][]));
+    }
+    
+    //loops without io and nested loops, that don't move the pointer in total: [-], [->>+<<], [->+>+++<<], ...
+    //or that just move the pointer: [>], [<<<], ...
+    private static boolean lowerSimpleLoop (String bfCode, int fromIncl, int toExcl, Code ret) {
+        Map <Integer, Integer> offset2Add = new TreeMap<>();
+        int offset = 0;
+        for (int i=fromIncl; i<toExcl; i++) {
+            final char cmd = bfCode.charAt(i);
+            if (cmd == '+' || cmd == '-')
+                offset2Add.put(offset, (offset2Add.containsKey(offset) ? offset2Add.get(offset) : 0) + (cmd == '+' ? 1 : -1));
+            else if (cmd == '>' || cmd == '<')
+                offset += (cmd == '>' ? 1 : -1);
+            else if (cmd == '[' || cmd == ']' || cmd == '.' || cmd == ',')
+                return false;
+        }
+        if (offset2Add.isEmpty() && offset != 0) {
+            ret.add(opScan, offset);
+            return true;
+        }
+        final Integer addToCounter = offset2Add.get(0);
+        if (offset != 0 || addToCounter == null || (addToCounter & 0xFF) == 0)
+            return false;
+        if (offset2Add.size() == 1 && (addToCounter == 1 || addToCounter == -1)) {
+            ret.add(opClear);
+            return true;
+        }
+        if (addToCounter != 1 && addToCounter != -1)
+            return false;
+        
+        //the loop runs cell[p] times if the counter is decremented and (256-cell[p]) times if it is incremented
+        for (Map.Entry <Integer, Integer> entry : offset2Add.entrySet())
+            if (entry.getKey() != 0 && (entry.getValue() & 0xFF) != 0)
+                ret.add(opMulAdd, entry.getKey(), entry.getValue() * -addToCounter);
+        ret.add(opClear);
+        return true;
+    }
+    
+    private static class Code {
+        
+        public int [] code = new int [1024];
+        public int size = 0;
+        
+        public void add (int ... values) {
+            if (size + values.length > code.length)
+                code = Arrays.copyOf(code, Math.max(code.length*2, size + values.length));
+            for (int value : values)
+                code[size++] = value;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import assembler.ConstantSynthesis;
+import assembler.MiniCode;
+import assembler.Optimizer;
+
+public class MemoryIdioms {
+    
+    //the memory-lookups of MiniCode (moveFromMemAddr, moveToMemAddr, constantToMemAddr..) walk through the memory-region
+    //(3 cells per byte) to the address and back, which costs O(address) instructions
+    //the templates are recognized and executed as one indexed access that leaves the tape in the same state
+    //a template starts at its first '[', the pointer is on the lookup-cell containing the address
+    //like the code of MiniCode it requires that the cells of the memory-region between the bytes are 0
+    
+    public static final String walkOut = "[[->>+>+<<<]>>>-]>";
+    public static final String walkBack = "<<[<<<[>>>[-]<<<<<<]]>>>[-<<+>>]";
+    
+    public static final int tmpOffset;
+    public static final String loadTemplate, storeTemplate, setTemplatePrefix, setTemplateSuffix;
+    public static final boolean templatesValid;
+    
+    static {
+        MiniCode miniCode = new MiniCode(0);
+        final int lookup = miniCode.getReservedMemLookupPosition();
+        tmpOffset = miniCode.getReservedTmpReserved() - lookup;
+        
+        //load: the byte is added to the tmp-cell (and removed from the memory), store: the tmp-cell is moved to the memory
+        loadTemplate = walkOut + "[-" + walkBack + "<<" + miniCode.move(lookup, lookup+tmpOffset) + "+" + miniCode.move(lookup+tmpOffset, lookup) + walkOut + "]" + walkBack;
+        storeTemplate = walkOut + "[-]" + walkBack + "<<" + miniCode.move(lookup, lookup+tmpOffset) + "[-" + miniCode.move(lookup+tmpOffset, lookup) + walkOut + "+" + walkBack + "<<" + miniCode.move(lookup, lookup+tmpOffset) + "]";
+        setTemplatePrefix = walkOut + "[-]";
+        setTemplateSuffix = walkBack;
+        
+        //the templates have to match the current code of MiniCode, otherwise they are not used
+        templatesValid = Optimizer.optimizeSimple(miniCode.moveFromMemAddr(lookup, lookup+2), true).equals(loadTemplate)
+                && Optimizer.optimizeSimple(miniCode.moveToMemAddr(lookup, lookup+tmpOffset), true).equals(storeTemplate)
+                && Optimizer.optimizeSimple(miniCode.constantToMemAddr(lookup+tmpOffset, lookup+tmpOffset, 5, lookup+tmpOffset), true).equals(Optimizer.optimizeSimple(miniCode.moveContentToZeroCell(lookup+tmpOffset, lookup+tmpOffset, lookup, lookup) + setTemplatePrefix + "+++++" + setTemplateSuffix + "<<" + miniCode.moveContentToZeroCell(lookup, lookup, lookup+tmpOffset, lookup+tmpOffset), true));
+    }
+    
+    //returns {opcode, argument, end of the template (exclusive)} or null, if no template starts at position
+    public static int [] match (String bfCode, int position) {
+        if (!templatesValid || !bfCode.startsWith(walkOut, position))
+            return null;
+        if (bfCode.startsWith(loadTemplate, position))
+            return new int [] {LoweredProgram.opMemLoad, tmpOffset, position + loadTemplate.length()};
+        if (bfCode.startsWith(storeTemplate, position))
+            return new int [] {LoweredProgram.opMemStore, tmpOffset, position + storeTemplate.length()};
+        if (bfCode.startsWith(setTemplatePrefix, position)) {
+            //the constant may be added with a loop on the cell behind the byte (see ConstantSynthesis)
+            final int [] constant = ConstantSynthesis.parse(bfCode, position + setTemplatePrefix.length());
+            if (bfCode.startsWith(setTemplateSuffix, constant[1]))
+                return new int [] {LoweredProgram.opMemSet, constant[0], constant[1] + setTemplateSuffix.length()};
+        }
+        return null;
+    }
+    
+    //returns the array-index of the pointer after the template or -1, if the template has to be executed step by step
+    public static int execute (FlatTape tape, int opcode, int argument, int index) {
+        final int address = tape.cells[index] & 0xFF;
+        final int tmpIndex = tape.ensure(index + tmpOffset);
+        index = tmpIndex - tmpOffset;
+        final int memIndex = tape.ensure(index + 3*address + 1);
+        final byte [] cells = tape.cells;
+        switch (opcode) {
+            case LoweredProgram.opMemLoad:
+                cells[tmpIndex] += cells[memIndex];
+                cells[memIndex] = 0;
+                return index+2;
+            case LoweredProgram.opMemStore:
+                cells[memIndex] = cells[tmpIndex];
+                cells[tmpIndex] = 0;
+                return tmpIndex;
+            case LoweredProgram.opMemSet:
+                cells[memIndex] = (byte)argument;
+                return index+2;
+            default:
+                throw new RuntimeException("unknown opcode. (internal error)");
+        }
+    }
+    
+}
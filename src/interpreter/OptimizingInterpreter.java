@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+public class OptimizingInterpreter extends SimpleInterpreter {
+    
+    //the code is lowered first (see LoweredProgram), runs of +-<> and simple loops are executed as one instruction
+    //the cells are accessed directly in the array of the FlatTape, the bounds are just checked when the pointer moves
+    //if verifyIdioms is set, every memory-lookup executed by MemoryIdioms is compared with the step by step execution
+    
+    public final FlatTape flatTape;
+    public boolean verifyIdioms = false;
+    private int [][] jumpTables;
+    
+    public OptimizingInterpreter () {
+        this(new FlatTape());
+    }
+    
+    public OptimizingInterpreter (FlatTape tape) {
+        this(tape, new OutputSink(), new InputSource());
+    }
+    
+    public OptimizingInterpreter (FlatTape tape, OutputSink output, InputSource input) {
+        super(tape, output, input);
+        this.flatTape = tape;
+    }
+    
+    @Override
+    public void execute (String code) {
+        run(LoweredProgram.lower(new BrainfuckProgram(code)));
+        finish();
+    }
+    
+    public void run (LoweredProgram program) {
+        jumpTables = program.jumpTables;
+        try {
+            run(program.code, 0, program.code.length, flatTape.ensure(flatTape.origin));
+        } catch (CompiledProgram.Terminate e) {
+        }
+    }
+    
+    //runs the instructions from fromIncl to toExcl and returns the array-index of the pointer
+    protected int run (int [] code, int fromIncl, int toExcl, int posCell) {
+        byte [] cells = flatTape.cells;
+        int posCode = fromIncl;
+        while (posCode < toExcl) {
+            switch (code[posCode]) {
+                case LoweredProgram.opAdd:
+                    cells[posCell] += code[posCode+1];
+                    posCode += 2;
+                    break;
+                case LoweredProgram.opMove:
+                    posCell += code[posCode+1];
+                    if (posCell < 0 || posCell >= cells.length) {
+                        posCell = flatTape.ensure(posCell);
+                        cells = flatTape.cells;
+                    }
+                    posCode += 2;
+                    break;
+                case LoweredProgram.opClear:
+                    cells[posCell] = 0;
+                    posCode++;
+                    break;
+                case LoweredProgram.opMulAdd:
+                    if (cells[posCell] != 0) {
+                        int dst = posCell + code[posCode+1];
+                        if (dst < 0 || dst >= cells.length) {
+                            dst = flatTape.ensure(dst);
+                            posCell = dst - code[posCode+1];
+                            cells = flatTape.cells;
+                        }
+                        cells[dst] += cells[posCell] * code[posCode+2];
+                    }
+                    posCode += 3;
+                    break;
+                case LoweredProgram.opScan:
+                    if (cells[posCell] != 0) {
+                        posCell = flatTape.scan(posCell, code[posCode+1]);
+                        cells = flatTape.cells;
+                    }
+                    posCode += 2;
+                    break;
+                case LoweredProgram.opJumpZero:
+                    posCode = (cells[posCell] == 0 ? code[posCode+1] : posCode+2);
+                    break;
+                case LoweredProgram.opJumpNonZero:
+                    posCode = (cells[posCell] != 0 ? code[posCode+1] : posCode+2);
+                    break;
+                case LoweredProgram.opOut:
+                    output.write(cells[posCell]);
+                    posCode++;
+                    break;
+                case LoweredProgram.opIn: {
+                    final int value = read(cells[posCell]);
+                    if (value < 0)
+                        throw new CompiledProgram.Terminate();
+                    cells[posCell] = (byte)value;
+                    posCode++;
+                    break;
+                }
+                case LoweredProgram.opMemLoad:
+                case LoweredProgram.opMemStore:
+                case LoweredProgram.opMemSet: {
+                    if (verifyIdioms)
+                        posCell = verifyIdiom(code, posCode, posCell);
+                    else {
+                        final int index = MemoryIdioms.execute(flatTape, code[posCode], code[posCode+2], posCell);
+                        if (index < 0)
+                            posCell = run(code, posCode+3, code[posCode+1], posCell);
+                        else
+                            posCell = index;
+                    }
+                    cells = flatTape.cells;
+                    posCode = code[posCode+1];
+                    break;
+                }
+                case LoweredProgram.opDispatch: {
+                    //the pointer is on the main-loop position, all segments in front of the target are skipped
+                    final int [] table = jumpTables[code[posCode+1]];
+                    final int segment = cells[posCell] & 0xFF;
+                    final int flag = posCell + DispatchChain.flagOffset;
+                    if (segment < table.length && table[segment] >= 0 && flag < cells.length && cells[posCell + DispatchChain.tmpOffset] == 0 && cells[flag] == 0) {
+                        cells[posCell] = 0;
+                        cells[flag] = 1;
+                        posCell = flag;
+                        posCode = table[segment];
+                    } else
+                        posCode += 2;
+                    break;
+                }
+                case LoweredProgram.opDispatchExit: {
+                    //the pointer is on the flag-cell, the tests of the following segments just decrement the main-loop position
+                    final int mainLoop = posCell - DispatchChain.flagOffset;
+                    if ((cells[mainLoop] & 0xFF) > code[posCode+2] && cells[mainLoop + DispatchChain.tmpOffset] == 0) {
+                        cells[mainLoop] -= code[posCode+2];
+                        posCell = mainLoop;
+                        posCode = code[posCode+1];
+                    } else
+                        posCode += 3;
+                    break;
+                }
+                default:
+                    throw new RuntimeException("unknown opcode. (internal error)");
+            }
+        }
+        return posCell;
+    }
+    
+    //executes the memory-lookup at posCode on a copy of the tape and step by step on the tape, both results have to be equal
+    private int verifyIdiom (int [] code, int posCode, int posCell) {
+        final FlatTape expected = flatTape.copy();
+        final int expectedIndex = MemoryIdioms.execute(expected, code[posCode], code[posCode+2], posCell);
+        posCell = run(code, posCode+3, code[posCode+1], posCell);
+        if (expectedIndex < 0)
+            return posCell;
+        final int from = Math.min(-expected.origin, -flatTape.origin);
+        final int to = Math.max(expected.cells.length - expected.origin, flatTape.cells.length - flatTape.origin);
+        for (int position=from; position<to; position++)
+            if (expected.get(position) != flatTape.get(position))
+                throw new RuntimeException("memory-lookup differs from step by step execution at cell " + position + ". (internal error)");
+        if (expectedIndex - expected.origin != posCell - flatTape.origin)
+            throw new RuntimeException("memory-lookup differs from step by step execution at the pointer. (internal error)");
+        return posCell;
+    }
+    
+}
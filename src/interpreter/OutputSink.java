@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class OutputSink {
+    
+    //Buffered:  the buffer is written when it is full, before input is read and at the end of the program
+    //Line:      additionally after every '\n'
+    //Immediate: after every byte
+    public enum FlushPolicy {Buffered, Line, Immediate};
+    
+    public static final int defaultBufferSize = (1 << 13);
+    
+    public final OutputStream out;
+    public final FlushPolicy flushPolicy;
+    private final byte [] buffer;
+    private int bufferUsed = 0;
+    
+    public OutputSink () {
+        this(System.out, FlushPolicy.Buffered);
+    }
+    
+    public OutputSink (OutputStream out, FlushPolicy flushPolicy) {
+        this(out, flushPolicy, defaultBufferSize);
+    }
+    
+    public OutputSink (OutputStream out, FlushPolicy flushPolicy, int bufferSize) {
+        this.out = out;
+        this.flushPolicy = flushPolicy;
+        this.buffer = new byte [Math.max(1, bufferSize)];
+    }
+    
+    public void write (byte value) {
+        buffer[bufferUsed++] = value;
+        if (bufferUsed == buffer.length || flushPolicy == FlushPolicy.Immediate || (flushPolicy == FlushPolicy.Line && value == '\n'))
+            flush();
+    }
+    
+    public void flush () {
+        try {
+            if (bufferUsed > 0)
+                out.write(buffer, 0, bufferUsed);
+            bufferUsed = 0;
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+}
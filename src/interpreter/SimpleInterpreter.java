@@ -23,67 +23,45 @@
  */
 package interpreter;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import utils.Utils;
-
 public class SimpleInterpreter {
     
-    //cells are from 0 to inv
+    //cells are from -inv to inv
     //cell-content is 1 byte (0- = 255 / 255+ = 0)
     
-    public static final int clusterLenLog2 = 8;
-    public static final int clusterLen = (1 << clusterLenLog2);
-    public final List <byte []> clusters = new ArrayList<>();
+    public final Tape tape;
+    public final OutputSink output;
+    public final InputSource input;
+    
+    public SimpleInterpreter () {
+        this(new FlatTape());
+    }
+    
+    public SimpleInterpreter (Tape tape) {
+        this(tape, new OutputSink(), new InputSource());
+    }
+    
+    public SimpleInterpreter (Tape tape, OutputSink output, InputSource input) {
+        this.tape = tape;
+        this.output = output;
+        this.input = input;
+    }
     
-    public void execute (String code) {
+    public void execute (String rawCode) {
+        BrainfuckProgram program = new BrainfuckProgram(rawCode);
+        final String code = program.code;
+        final int [] jmpToDst = program.jumpTable;
         int posCell = 0;
         int posCode = 0;
         
-        int [] jmpToDst = new int [code.length()];
-        for (int i=0; i<jmpToDst.length; i++) {
-            posCode = i;
-            char cmd = code.charAt(posCode);
-            if (cmd == '[') {
-                int openBrackets = 1;
-                posCode++;
-                for (; true; posCode++) {
-                    char cmdHere = code.charAt(posCode);
-                    if (cmdHere == '[')
-                        openBrackets++;
-                    else if (cmdHere == ']') {
-                        openBrackets--;
-                        if (openBrackets == 0)
-                            break;
-                    }
-                }
-            } else if (cmd == ']') {
-                int openBrackets = -1;
-                posCode--;
-                for (; true; posCode--) {
-                    char cmdHere = code.charAt(posCode);
-                    if (cmdHere == '[') {
-                        openBrackets++;
-                        if (openBrackets == 0)
-                            break;
-                    } else if (cmdHere == ']')
-                        openBrackets--;
-                }
-            }
-            jmpToDst[i] = posCode;
-        }
-        
-        posCode = 0;
         while (posCode != code.length()) {
             char cmd = code.charAt(posCode);
             if (cmd == '[') {
-                if (getCell(posCell) == '\0')
+                if (tape.get(posCell) == '\0')
                     posCode = jmpToDst[posCode];
                 
                 posCode++;
             } else if (cmd == ']') {
-                if (getCell(posCell) != '\0')
+                if (tape.get(posCell) != '\0')
                     posCode = jmpToDst[posCode];
                 else
                     posCode++;
@@ -93,49 +71,36 @@ public class SimpleInterpreter {
                 else if (cmd == '>')
                     posCell++;
                 else if (cmd == '+')
-                    addCell(posCell, 1);
+                    tape.add(posCell, 1);
                 else if (cmd == '-')
-                    addCell(posCell, -1);
+                    tape.add(posCell, -1);
                 else if (cmd == '.')
-                    System.out.print((char)(getCell(posCell) & 0xFF));
+                    print(tape.get(posCell));
                 else {
-                    int toRead = -1;
-                    while (toRead == -1) {
-                        try {
-                            toRead = System.in.read();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                        if (toRead == -1)
-                            Utils.sleep(10);
-                    }
-                    setCell(posCell, (byte)toRead);
+                    final int value = read(tape.get(posCell));
+                    if (value < 0)
+                        break;
+                    tape.set(posCell, (byte)value);
                 }
                 posCode++;
             }
         }
-        System.out.println("");
+        finish();
     }
     
-    public byte getCell (int position) {
-        int clusterPos = (position >> clusterLenLog2);
-        while (clusterPos >= clusters.size())
-            clusters.add(new byte [clusterLen]);
-        return clusters.get(clusterPos)[position%clusterLen];
+    protected void finish () {
+        output.write((byte)'\n');
+        output.flush();
     }
     
-    public void addCell (int position, int toAdd) {
-        int clusterPos = (position >> clusterLenLog2);
-        while (clusterPos >= clusters.size())
-            clusters.add(new byte [clusterLen]);
-        clusters.get(clusterPos)[position%clusterLen] += toAdd;
+    protected void print (byte value) {
+        output.write(value);
     }
     
-    public void setCell (int position, byte set) {
-        int clusterPos = (position >> clusterLenLog2);
-        while (clusterPos >= clusters.size())
-            clusters.add(new byte [clusterLen]);
-        clusters.get(clusterPos)[position%clusterLen] = set;
+    //returns the new content of the cell or -1 if the program has to be terminated
+    protected int read (byte currentValue) {
+        output.flush();
+        return input.read(currentValue);
     }
     
 }
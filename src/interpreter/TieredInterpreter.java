@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Hilmar Ackermann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TieredInterpreter extends OptimizingInterpreter {
+    
+    //tier 0: the brainfuck-code is executed directly (no startup cost), the back-edges of every loop are counted
+    //tier 1: a loop with more than compileThreshold back-edges is lowered (see LoweredProgram) and compiled to a tree of nodes,
+    //        the next time the loop is entered the tree executes the whole loop
+    
+    public static final int defaultCompileThreshold = 1000;
+    
+    public final int compileThreshold;
+    private byte [] cells;
+    private int posCell;
+    
+    public TieredInterpreter () {
+        this(new FlatTape());
+    }
+    
+    public TieredInterpreter (FlatTape tape) {
+        this(tape, new OutputSink(), new InputSource(), defaultCompileThreshold);
+    }
+    
+    public TieredInterpreter (FlatTape tape, OutputSink output, InputSource input, int compileThreshold) {
+        super(tape, output, input);
+        this.compileThreshold = compileThreshold;
+    }
+    
+    @Override
+    public void execute (String rawCode) {
+        BrainfuckProgram program = new BrainfuckProgram(rawCode);
+        final String code = program.code;
+        final int [] jmpToDst = program.jumpTable;
+        final int [] backEdges = new int [code.length()];
+        final Node [] compiledLoops = new Node [code.length()];
+        cells = flatTape.cells;
+        posCell = flatTape.ensure(flatTape.origin);
+        
+        int posCode = 0;
+        try {
+            while (posCode < code.length()) {
+                switch (code.charAt(posCode)) {
+                    case '[':
+                        if (compiledLoops[posCode] != null) {
+                            compiledLoops[posCode].execute();
+                            posCode = jmpToDst[posCode]+1;
+                        } else
+                            posCode = (cells[posCell] == 0 ? jmpToDst[posCode]+1 : posCode+1);
+                        break;
+                    case ']':
+                        if (cells[posCell] != 0) {
+                            posCode = jmpToDst[posCode];
+                            if (++backEdges[posCode] == compileThreshold)
+                                compiledLoops[posCode] = compile(code.substring(posCode, jmpToDst[posCode]+1));
+                            else
+                                posCode++;
+                        } else
+                            posCode++;
+                        break;
+                    case '>':
+                        move(1);
+                        posCode++;
+                        break;
+                    case '<':
+                        move(-1);
+                        posCode++;
+                        break;
+                    case '+':
+                        cells[posCell]++;
+                        posCode++;
+                        break;
+                    case '-':
+                        cells[posCell]--;
+                        posCode++;
+                        break;
+                    case '.':
+                        output.write(cells[posCell]);
+                        posCode++;
+                        break;
+                    case ',':
+                        cells[posCell] = input(cells[posCell]);
+                        posCode++;
+                        break;
+                    default:
+                        throw new RuntimeException("unknown instruction. (internal error)");
+                }
+            }
+        } catch (CompiledProgram.Terminate e) {
+        }
+        finish();
+    }
+    
+    private void move (int offset) {
+        posCell += offset;
+        if (posCell < 0 || posCell >= cells.length) {
+            posCell = flatTape.ensure(posCell);
+            cells = flatTape.cells;
+        }
+    }
+    
+    private byte input (byte currentValue) {
+        final int value = read(currentValue);
+        if (value < 0)
+            throw new CompiledProgram.Terminate();
+        return (byte)value;
+    }
+    
+    //simple loops are lowered to several instructions (like [->+<] to a multiply-add and a clear)
+    private Node compile (String loop) {
+        final int [] code = LoweredProgram.lower(new BrainfuckProgram(loop)).code;
+        final Node [] nodes = compile(code, 0, code.length);
+        if (nodes.length == 1)
+            return nodes[0];
+        return new Node() {
+            void execute () {
+                for (Node node : nodes)
+                    node.execute();
+            }
+        };
+    }
+    
+    private Node [] compile (final int [] code, int fromIncl, int toExcl) {
+        List <Node> ret = new ArrayList<>();
+        for (int i=fromIncl; i<toExcl; ) {
+            final int arg0 = (LoweredProgram.getInstructionLength(code[i]) > 1 ? code[i+1] : 0);
+            final int arg1 = (LoweredProgram.getInstructionLength(code[i]) > 2 ? code[i+2] : 0);
+            switch (code[i]) {
+                case LoweredProgram.opAdd:
+                    ret.add(new Node() {
+                        void execute () {
+                            cells[posCell] += arg0;
+                        }
+                    });
+                    break;
+                case LoweredProgram.opMove:
+                    ret.add(new Node() {
+                        void execute () {
+                            move(arg0);
+                        }
+                    });
+                    break;
+                case LoweredProgram.opClear:
+                    ret.add(new Node() {
+                        void execute () {
+                            cells[posCell] = 0;
+                        }
+                    });
+                    break;
+                case LoweredProgram.opMulAdd:
+                    ret.add(new Node() {
+                        void execute () {
+                            if (cells[posCell] != 0) {
+                                move(arg0);
+                                final byte factor = cells[posCell - arg0];
+                                cells[posCell] += factor * arg1;
+                                posCell -= arg0;
+                            }
+                        }
+                    });
+                    break;
+                case LoweredProgram.opScan:
+                    ret.add(new Node() {
+                        void execute () {
+                            if (cells[posCell] != 0) {
+                                posCell = flatTape.scan(posCell, arg0);
+                                cells = flatTape.cells;
+                            }
+                        }
+                    });
+                    break;
+                case LoweredProgram.opJumpZero: {
+                    final Node [] body = compile(code, i+2, code[i+1]-2);
+                    ret.add(new Node() {
+                        void execute () {
+                            while (cells[posCell] != 0)
+                                for (Node node : body)
+                                    node.execute();
+                        }
+                    });
+                    i = code[i+1];
+                    continue;
+                }
+                case LoweredProgram.opMemLoad:
+                case LoweredProgram.opMemStore:
+                case LoweredProgram.opMemSet: {
+                    final int opcode = code[i];
+                    final Node [] stepByStep = compile(code, i+3, code[i+1]);
+                    ret.add(new Node() {
+                        void execute () {
+                            final int index = MemoryIdioms.execute(flatTape, opcode, arg1, posCell);
+                            if (index < 0)
+                                for (Node node : stepByStep)
+                                    node.execute();
+                            else {
+                                posCell = index;
+                                cells = flatTape.cells;
+                            }
+                        }
+                    });
+                    i = code[i+1];
+                    continue;
+                }
+                case LoweredProgram.opOut:
+                    ret.add(new Node() {
+                        void execute () {
+                            output.write(cells[posCell]);
+                        }
+                    });
+                    break;
+                case LoweredProgram.opIn:
+                    ret.add(new Node() {
+                        void execute () {
+                            cells[posCell] = input(cells[posCell]);
+                        }
+                    });
+                    break;
+                case LoweredProgram.opDispatch:
+                case LoweredProgram.opDispatchExit:
+                    //the nodes can't jump into loops, the tests of the segments are executed
+                    break;
+                default:
+                    throw new RuntimeException("unknown opcode. (internal error)");
+            }
+            i += LoweredProgram.getInstructionLength(code[i]);
+        }
+        return ret.toArray(new Node [ret.size()]);
+    }
+    
+    private abstract static class Node {
+        
+        abstract void execute ();
+        
+    }
+    
+}
@@ -0,0 +1,14 @@
+//flags:
+//bytes written with a constant address are read through a register and the other way round (also behind address 255-stacksize)
+mov [240], 90
+mov $0, 240
+mov $1, [$0]
+out $1
+mov $0, 250
+mov [$0], 65
+mov $1, [250]
+out $1
+mov [5], 66
+mov $0, 5
+mov $1, [$0]
+out $1
@@ -0,0 +1,22 @@
+//flags:
+//the address of the memory cursor wraps from 255 to 0 and from 238 to 10
+global 0 "ab"
+global 10 "k"
+global 238 "X"
+global 254 "yz"
+mov $0, 254
+mov $2, 4
+loop:
+mov $1, [$0]
+out $1
+add $0, 1
+sub $2, 1
+jnz $2, loop
+mov $0, 238
+mov $2, 2
+loop2:
+mov $1, [$0]
+out $1
+add $0, 28
+sub $2, 1
+jnz $2, loop2
@@ -0,0 +1,11 @@
+//flags:
+//add $0, 255 decrements the address (it must not move the memory cursor by +255)
+global 0 "abcdefghij"
+mov $0, 8
+mov $2, 5
+loop:
+mov $1, [$0]
+out $1
+add $0, 255
+sub $2, 1
+jnz $2, loop
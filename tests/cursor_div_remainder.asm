@@ -0,0 +1,13 @@
+//flags:
+//the address-register is written by the remainder of div inside of the loop (the memory cursor can not be used)
+global 0 "abcdefghij"
+mov $5, 4
+mov $7, 10
+loop:
+mov $1, [$0]
+out $1
+mov $4, $0
+add $4, 3
+div $6, $0, $4, $7
+sub $5, 1
+jnz $5, loop
@@ -0,0 +1,18 @@
+//flags: -inline
+//the function f jumps to its body, which is in front of f (just the range from f on must not be inlined)
+jmp main
+
+helper:
+mov $0, 65
+out $0
+ret
+
+main:
+call f
+out 66
+jmp end
+
+f:
+jmp helper
+
+end:
@@ -0,0 +1,33 @@
+//flags:
+//the bytes at the end of the memory (up to address 255) are written and read through a register, in a fill loop and a read loop (memory cursor)
+mov $0, 248
+mov $1, 65
+fill:
+mov [$0], $1
+add $1, 1
+add $0, 1
+jz $0, filled
+jmp fill
+filled:
+mov $3, [248]
+out $3
+mov $0, 248
+read:
+mov $3, [$0]
+out $3
+add $0, 1
+jz $0, done
+jmp read
+done:
+mov [255], 90
+mov $0, 255
+mov $3, [$0]
+out $3
+mov $1, 97
+mov [$0], $1
+mov $3, [255]
+out $3
+mov $0, 0
+mov $3, [$0]
+add $3, 48
+out $3
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+#translates and runs every tests/*.asm and compares its output with the .txt-file of the same name
+#the options of a test are in its first line (//flags: ...), its input is in the .in-file of the same name (if there is one)
+#the compiled java-files are taken from build/ (see build.sh) or from the directory in $BUILD
+
+cd "$(dirname "$0")"
+build=${BUILD:-../build/}
+failed=0
+for test in *.asm; do
+    flags=$(head -n 1 "$test" | sed -n 's|^//flags:||p')
+    input="${test%.asm}.in"
+    if (if [ -f "$input" ]; then cat "$input"; fi) | timeout 60 java -cp "$build" Main "$test" -e $flags 2>&1 | cmp -s - "${test%.asm}.txt"; then
+        echo "ok      $test"
+    else
+        echo "failed  $test"
+        failed=1
+    fi
+done
+exit $failed
@@ -0,0 +1,17 @@
+//flags:
+//every byte is pushed and popped on a full stack (the top is the last entry)
+stacksize 3
+loop:
+push $0
+mov $1, $0
+add $1, 1
+push $1
+push 77
+pop $2
+pop $3
+pop $4
+out $4
+out $3
+out $2
+add $0, 1
+jnz $0, loop
@@ -0,0 +1,39 @@
+//flags: -m wide
+//writes and reads bytes on both sides of page boundaries and in the last slot of the wide memory
+stacksize 4
+mov $0, 0
+mov $1, 255
+mov [$0:$1], 65
+mov $0, 1
+mov $1, 0
+mov [$0:$1], 66
+mov $1, 255
+mov [$0:$1], 67
+mov $0, 18
+mov $1, 52
+mov $2, 68
+mov [$0:$1], $2
+mov $0, 255
+mov $1, 255
+mov [$0:$1], 69
+mov $3, [255]
+out $3
+mov $3, [256]
+out $3
+mov $0, 1
+mov $1, 255
+mov $3, [$0:$1]
+out $3
+mov $0, 18
+mov $1, 52
+mov $3, [$0:$1]
+out $3
+mov $0, 255
+mov $1, 255
+mov $3, [$0:$1]
+out $3
+mov $0, 1
+mov $1, 1
+mov $3, [$0:$1]
+add $3, 48
+out $3